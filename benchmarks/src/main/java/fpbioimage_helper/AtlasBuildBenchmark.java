@@ -0,0 +1,57 @@
+package fpbioimage_helper;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+
+/**
+ * Filling all atlases of a stack, the loop that used to live in
+ * Fpbioimage_helper.run(): resampling every slice into its atlas position.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AtlasBuildBenchmark {
+
+	/** Source slice width and height; slices are resized to at most 499. */
+	@Param({"128", "512", "1024"})
+	public int size;
+
+	@Param({"8", "16", "32", "24"})
+	public int bitDepth;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private ImagePlus imp;
+	private AtlasLayout layout;
+
+	@Setup
+	public void setup() {
+		imp = SyntheticStacks.create(size, size, 64, bitDepth);
+		int target = Math.min(size, ExportSettings.MAX_SIZE - 1);
+		layout = new AtlasLayout(target, target, 64, 8);
+	}
+
+	@Benchmark
+	public BufferedImage[] build() {
+		return new AtlasBuilder(imp, layout, threads).build();
+	}
+
+}
@@ -0,0 +1,62 @@
+package fpbioimage_helper;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+
+/**
+ * Copying a rendered slice into its atlas position, as the legacy
+ * (ImageProcessor) path does for every slice. Slices of all bit depths are
+ * rendered to RGB first, as they are in the export.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopySubImageBenchmark {
+
+	/** Slice width and height. */
+	@Param({"64", "256", "499"})
+	public int size;
+
+	@Param({"8", "16", "24"})
+	public int bitDepth;
+
+	private BufferedImage slice;
+	private BufferedImage atlas;
+	private int x;
+	private int y;
+
+	@Setup
+	public void setup() {
+		ImagePlus imp = SyntheticStacks.create(size, size, 1, bitDepth);
+		slice = imp.getProcessor().convertToRGB().getBufferedImage();
+		AtlasLayout layout = new AtlasLayout(size, size, 64, 8);
+		atlas = new BufferedImage(layout.atlasWidth, layout.atlasHeight, BufferedImage.TYPE_INT_ARGB);
+		// A position away from the corner, so the row offsets are exercised
+		x = layout.xStartPixel(layout.numberOfImages - 1);
+		y = layout.yStartPixel(layout.numberOfImages - 1);
+	}
+
+	@Benchmark
+	public BufferedImage copySubImage() {
+		AtlasBuilder.copySubImage(slice, atlas, x, y);
+		return atlas;
+	}
+
+}
@@ -0,0 +1,58 @@
+package fpbioimage_helper;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Computing the atlas layout and every slice position in it, for both
+ * packings, and ceil2 over the range of sizes it is called with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayoutBenchmark {
+
+	/** Slice width and height. */
+	@Param({"64", "256", "499"})
+	public int size;
+
+	@Param({"16", "128", "499"})
+	public int depth;
+
+	@Param({"POWER_OF_TWO", "TIGHT"})
+	public AtlasPacking packing;
+
+	@Benchmark
+	public void layoutAndPositions(Blackhole bh) {
+		AtlasLayout layout = new AtlasLayout(size, size, depth, 8, packing);
+		for (int i=0; i<layout.numberOfImages; i++) {
+			bh.consume(layout.atlasNumber(i));
+			bh.consume(layout.xStartPixel(i));
+			bh.consume(layout.yStartPixel(i));
+		}
+	}
+
+	@Benchmark
+	public int ceil2() {
+		int sum = 0;
+		for (int x=1; x<=4096; x++) {
+			sum += AtlasLayout.ceil2(x);
+		}
+		return sum;
+	}
+
+}
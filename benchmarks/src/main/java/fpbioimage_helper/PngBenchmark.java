@@ -0,0 +1,84 @@
+package fpbioimage_helper;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+
+/**
+ * Encoding one atlas of a synthetic stack with each compression preset and
+ * atlas format. The output is counted and dropped, so disk speed doesn't
+ * come into it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PngBenchmark {
+
+	/** Slice width and height. */
+	@Param({"128", "256"})
+	public int size;
+
+	@Param({"8", "16", "24"})
+	public int bitDepth;
+
+	@Param({"Fast", "Balanced", "Maximum"})
+	public String preset;
+
+	@Param({"RGB", "Luminance", "Packed"})
+	public String format;
+
+	private PngEncoder encoder;
+	private AtlasFormat atlasFormat;
+	private BufferedImage atlas;
+
+	/** Discards what is written, keeping only the count. */
+	private static class CountingStream extends OutputStream {
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		encoder = PngEncoder.forPreset(preset);
+		atlasFormat = AtlasFormat.forName(format);
+		int depth = 64;
+		ImagePlus imp = SyntheticStacks.create(size, size, depth, bitDepth);
+		AtlasLayout layout = new AtlasLayout(size, size, atlasFormat.positions(depth), 8);
+		AtlasBuilder builder = new AtlasBuilder(imp, layout, 1);
+		builder.setFormat(atlasFormat, depth);
+		atlas = builder.build()[0];
+	}
+
+	@Benchmark
+	public long encode() throws IOException {
+		CountingStream out = new CountingStream();
+		encoder.encode(AtlasBuilder.pixels(atlas), atlas.getWidth(), atlas.getHeight(), atlasFormat.colourType, out);
+		return out.count;
+	}
+
+}
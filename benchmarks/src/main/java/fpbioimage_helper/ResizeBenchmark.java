@@ -0,0 +1,90 @@
+package fpbioimage_helper;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Resizing one slice to the atlas slice size: the original ImageProcessor
+ * route (resize, render, copy out as a BufferedImage) against the direct
+ * {@link SliceResampler}, and the area-average and Lanczos filters of
+ * {@link KernelResampler}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResizeBenchmark {
+
+	/** Source slice width and height. */
+	@Param({"128", "512", "1024"})
+	public int size;
+
+	@Param({"8", "16", "32", "24"})
+	public int bitDepth;
+
+	private ImagePlus imp;
+	private Object slicePixels;
+	private int target;
+	private SliceResampler resampler;
+	private KernelResampler areaResampler;
+	private KernelResampler lanczosResampler;
+	private IntensityLut lut;
+	private int[] atlas;
+
+	@Setup
+	public void setup() {
+		imp = SyntheticStacks.create(size, size, 1, bitDepth);
+		slicePixels = imp.getStack().getPixels(1);
+		target = Math.min(size/2, ExportSettings.MAX_SIZE - 1);
+		resampler = new SliceResampler(size, size, target, target);
+		areaResampler = new KernelResampler(ResamplingFilter.AREA, size, size, target, target);
+		lanczosResampler = new KernelResampler(ResamplingFilter.LANCZOS, size, size, target, target);
+		lut = IntensityLut.forBitDepth(bitDepth, imp.getDisplayRangeMin(), imp.getDisplayRangeMax(),
+				SliceResampler.lookupTable(imp.getProcessor()));
+		atlas = new int[AtlasLayout.ceil2(target)*AtlasLayout.ceil2(target)];
+	}
+
+	@Benchmark
+	public BufferedImage imageProcessorResize() {
+		ImageProcessor slicePr = imp.getStack().getProcessor(1);
+		slicePr.setMinAndMax(imp.getDisplayRangeMin(), imp.getDisplayRangeMax());
+		slicePr.setInterpolationMethod(ImageProcessor.BILINEAR);
+		return slicePr.resize(target, target).getBufferedImage();
+	}
+
+	@Benchmark
+	public int[] sliceResampler() {
+		resampler.resample(slicePixels, lut, atlas, AtlasLayout.ceil2(target), 0, 0);
+		return atlas;
+	}
+
+	@Benchmark
+	public int[] areaResampler() {
+		areaResampler.resample(slicePixels, lut, atlas, AtlasLayout.ceil2(target), 0, 0);
+		return atlas;
+	}
+
+	@Benchmark
+	public int[] lanczosResampler() {
+		lanczosResampler.resample(slicePixels, lut, atlas, AtlasLayout.ceil2(target), 0, 0);
+		return atlas;
+	}
+
+}
@@ -0,0 +1,45 @@
+package fpbioimage_helper;
+
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Stacks for the benchmarks: smooth blobs plus noise, so the PNG encoder
+ * sees something closer to a micrograph than pure noise or a flat image.
+ */
+class SyntheticStacks {
+
+	private SyntheticStacks() {
+	}
+
+	/** A width x height x depth stack of the given bit depth (8, 16, 32 or 24 for RGB). */
+	static ImagePlus create(int width, int height, int depth, int bitDepth) {
+		ImageStack stack = ImageStack.create(width, height, depth, bitDepth);
+		Random random = new Random(42);
+		for (int z=1; z<=depth; z++) {
+			Object pixels = stack.getPixels(z);
+			int i = 0;
+			for (int y=0; y<height; y++) {
+				for (int x=0; x<width; x++, i++) {
+					double v = 0.5 + 0.4*Math.sin(x*0.05 + z*0.1)*Math.cos(y*0.07 - z*0.05) + 0.1*random.nextDouble();
+					if (pixels instanceof byte[]) {
+						((byte[])pixels)[i] = (byte)(v*255);
+					} else if (pixels instanceof short[]) {
+						((short[])pixels)[i] = (short)(v*4095);
+					} else if (pixels instanceof float[]) {
+						((float[])pixels)[i] = (float)v;
+					} else {
+						int c = (int)(v*255);
+						((int[])pixels)[i] = (c << 16) | ((255 - c) << 8) | (c/2);
+					}
+				}
+			}
+		}
+		ImagePlus imp = new ImagePlus("synthetic", stack);
+		imp.resetDisplayRange();
+		return imp;
+	}
+
+}
@@ -0,0 +1,77 @@
+package fpbioimage_helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+
+/**
+ * Rendering index.html and jsonInfo.json from their templates and writing
+ * them to a temporary folder, and rendering the json alone to memory. The
+ * exporter is replaced every iteration, as it keeps a list of the files it
+ * wrote.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+
+	private AtlasExporter exporter;
+	private File folder;
+	private double[] voxelSize = {0.2, 0.2, 0.5};
+	private Map<String, String> fields = new HashMap<String, String>();
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		ImagePlus imp = SyntheticStacks.create(64, 64, 16, 8);
+		ExportSettings settings = ExportSettings.defaults(imp);
+		settings.uniqueName = "benchmark";
+		exporter = new AtlasExporter(imp, settings);
+		folder = Files.createTempDirectory("fpb-template").toFile();
+		for (String field : Template.forResource("/jsonTemplate.json").getFields()) {
+			fields.put(field, field.toLowerCase());
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		for (File file : folder.listFiles()) file.delete();
+		folder.delete();
+	}
+
+	@Benchmark
+	public void webpage() throws IOException {
+		exporter.writeTemplate("/templateWebpage.html", folder + "/index.html", false, "./", 16, 64, 64, voxelSize, 1, "");
+	}
+
+	@Benchmark
+	public void json() throws IOException {
+		exporter.writeTemplate("/jsonTemplate.json", folder + "/jsonInfo.json", false, "./", 16, 64, 64, voxelSize, 1, "");
+	}
+
+	@Benchmark
+	public byte[] renderJson() throws IOException {
+		return Template.forResource("/jsonTemplate.json").render(fields);
+	}
+
+}
@@ -0,0 +1,563 @@
+package fpbioimage_helper;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+/**
+ * Resizes every slice of a stack and packs it into the FPBioimage atlases.
+ *
+ * Each slice goes to a fixed, non-overlapping region of one atlas, so slices
+ * can be processed in any order and on any number of threads. With a single
+ * thread the slices are processed in order on the calling thread.
+ *
+ * By default slices are resampled by {@link SliceResampler} straight into the
+ * atlas pixels. The older resize()/getBufferedImage()/copySubImage() route is
+ * kept behind {@link #setDirectResampling} for comparison. The area-average
+ * and Lanczos filters chosen with {@link #setFilter} use a
+ * {@link KernelResampler} instead.
+ *
+ * Virtual stacks are read ahead by a {@link SlicePrefetcher}, so only the
+ * slices being resampled and the next few are ever in memory.
+ *
+ * A builder can also be limited to one brick of a larger volume with
+ * {@link #setRegion}: the layout then describes the brick, and only the
+ * brick's window of each resized slice is packed.
+ *
+ * Atlases are ARGB in memory whatever the {@link AtlasFormat}: luminance
+ * atlases hold grey values, and packed atlases hold four slices per pixel,
+ * one in each channel.
+ */
+public class AtlasBuilder {
+
+	private final ImagePlus imp;
+	private final AtlasLayout layout;
+	private final int numThreads;
+	private boolean directResampling = true;
+	private int prefetchDepth = -1;
+
+	// Region of the resized volume covered by the layout
+	private int fullWidth;
+	private int fullHeight;
+	private int regionX = 0;
+	private int regionY = 0;
+	private int firstSlice = 0;
+	// Part of the stack that is exported, or null for all of it
+	private CropBox crop;
+
+	private AtlasFormat format = AtlasFormat.RGB;
+	private int numberOfSlices;
+	private ResamplingFilter filter = ResamplingFilter.BILINEAR;
+	// Created on first use, then shared by all atlases and threads
+	private Resampler resampler;
+
+	// Hyperstack position, and the display settings of that channel
+	private final int nChannels;
+	private final int nSlices;
+	private int channel;
+	private int frame;
+	private double displayMin;
+	private double displayMax;
+	private ColorModel displayColorModel;
+	private int[] displayLut;
+	// Range for 16 and 32-bit data that replaces the display range, if set
+	private double[] intensityRange;
+	// Built on first use, then shared by all atlases and threads
+	private IntensityLut intensityLut;
+	// Slice resampled before packing into a channel, one per thread
+	private final ThreadLocal<int[]> packScratch = new ThreadLocal<int[]>();
+
+	private ExportTimings timings = new ExportTimings();
+
+	private double progressStart = 0.0;
+	private double progressRange = 1.0;
+
+	public AtlasBuilder(ImagePlus imp, AtlasLayout layout, int numThreads) {
+		this.imp = imp;
+		this.layout = layout;
+		this.numThreads = Math.max(1, numThreads);
+		this.fullWidth = layout.sliceWidth;
+		this.fullHeight = layout.sliceHeight;
+		this.numberOfSlices = layout.numberOfImages;
+		// getNChannels()/getNSlices() check the dimensions against the stack size;
+		// ImagePlus.getStackIndex() doesn't, and can be stale on a new image
+		this.nChannels = imp.getNChannels();
+		this.nSlices = imp.getNSlices();
+		this.channel = imp.getChannel();
+		this.frame = imp.getFrame();
+	}
+
+	/**
+	 * Pack the z-slices of one channel and timepoint (both 1-based) of a
+	 * hyperstack, rendered with that channel's LUT and display range. By
+	 * default the channel and frame being displayed are used.
+	 */
+	public void setChannelFrame(int channel, int frame) {
+		this.channel = channel;
+		this.frame = frame;
+	}
+
+	/**
+	 * Store the voxels in the given format. The layout then describes atlas
+	 * positions, which hold {@link AtlasFormat#slicesPerPixel} of the
+	 * numberOfSlices slices each. Formats other than RGB are rendered in grey,
+	 * ignoring the LUT, and always resampled directly.
+	 */
+	public void setFormat(AtlasFormat format, int numberOfSlices) {
+		this.format = format;
+		this.numberOfSlices = numberOfSlices;
+		intensityLut = null;
+	}
+
+	/**
+	 * Pack only a brick of the volume: slices are resized to fullWidth x
+	 * fullHeight, and the layout's sliceWidth x sliceHeight window at (x, y)
+	 * of stack slices firstSlice (zero based) onwards is packed.
+	 */
+	public void setRegion(int fullWidth, int fullHeight, int x, int y, int firstSlice) {
+		this.fullWidth = fullWidth;
+		this.fullHeight = fullHeight;
+		this.regionX = x;
+		this.regionY = y;
+		this.firstSlice = firstSlice;
+	}
+
+	/**
+	 * Export only the part of the stack inside crop: slices are resized from
+	 * the crop rectangle, and slice 0 is z-slice crop.z. Region and layout
+	 * are then relative to the cropped volume.
+	 */
+	public void setCrop(CropBox crop) {
+		this.crop = crop;
+		resampler = null;
+	}
+
+	/** Report progress as the fraction [start, start+range] of the ImageJ progress bar. */
+	public void setProgressRange(double start, double range) {
+		progressStart = start;
+		progressRange = range;
+	}
+
+	/** Record time spent resampling and packing slices in timings. */
+	public void setTimings(ExportTimings timings) {
+		this.timings = timings;
+	}
+
+	/**
+	 * Map 16 and 32-bit values from min-max to 8 bits instead of using the
+	 * display range, e.g. a range from an {@link IntensityHistogram} of the
+	 * whole channel. 8-bit and RGB images keep their display range.
+	 */
+	public void setIntensityRange(double min, double max) {
+		intensityRange = new double[] {min, max};
+		intensityLut = null;
+	}
+
+	/** Resize slices with the given filter; filters other than bilinear are always resampled directly. */
+	public void setFilter(ResamplingFilter filter) {
+		this.filter = filter;
+		resampler = null;
+	}
+
+	public void setDirectResampling(boolean directResampling) {
+		this.directResampling = directResampling;
+	}
+
+	/**
+	 * Number of slices to read ahead of the resampling threads, or 0 to read
+	 * each slice when it is needed. By default virtual stacks are read ahead
+	 * by two slices per thread and normal stacks are not.
+	 */
+	public void setPrefetch(int slices) {
+		prefetchDepth = slices;
+	}
+
+	/**
+	 * Everything besides the source pixels that decides what the atlases look
+	 * like: size, region, format, resampling and the display range and LUT.
+	 */
+	public String renderingKey() {
+		setupDisplay();
+		return imp.getWidth() + "x" + imp.getHeight() + " " + layout.sliceWidth + "x" + layout.sliceHeight
+				+ "x" + numberOfSlices + " of " + fullWidth + "x" + fullHeight + " at " + regionX + "," + regionY + "," + firstSlice
+				+ " " + format.jsonName + " " + layout.numberOfAtlases + " " + layout.packing.jsonName + (isDirect() ? " direct" : " legacy") + " " + filter.label
+				+ " " + displayMin + "-" + displayMax + " " + Arrays.toString(displayLut)
+				+ (crop != null ? " crop " + crop : "");
+	}
+
+	public BufferedImage[] build() {
+		BufferedImage[] atlasArray = new BufferedImage[layout.numberOfAtlases];
+		for (int i=0; i<layout.numberOfAtlases; i++){
+			atlasArray[i] = newAtlas();
+		}
+
+		int[] slices = new int[layout.numberOfImages];
+		for (int i=0; i<slices.length; i++) slices[i] = i;
+
+		ExecutorService pool = newPool();
+		SlicePrefetcher prefetcher = newPrefetcher(slices);
+		try {
+			fill(pool, prefetcher, slices, atlasArray, new AtomicInteger());
+		} finally {
+			if (pool != null) pool.shutdownNow();
+			if (prefetcher != null) prefetcher.close();
+		}
+		return atlasArray;
+	}
+
+	/**
+	 * Build the atlases one at a time, in atlas order, handing each to the sink
+	 * as soon as all its slices are in place. The sink runs on its own thread
+	 * while the next atlas is being filled, and only two atlas images are ever
+	 * allocated, so peak memory is about two atlases whatever the stack size.
+	 */
+	public void stream(final AtlasSink sink) throws IOException {
+		final BlockingQueue<BufferedImage> free = new ArrayBlockingQueue<BufferedImage>(2);
+		free.add(newAtlas());
+		if (layout.numberOfAtlases > 1) free.add(newAtlas());
+
+		// Read ahead across atlas boundaries, in the order the atlases are filled
+		int[] order = new int[layout.numberOfImages];
+		int count = 0;
+		for (int a=0; a<layout.numberOfAtlases; a++) {
+			for (int i : slicesOf(a)) order[count++] = i;
+		}
+
+		ExecutorService pool = newPool();
+		SlicePrefetcher prefetcher = newPrefetcher(order);
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		AtomicInteger done = new AtomicInteger();
+		List<Future<?>> written = new ArrayList<Future<?>>(layout.numberOfAtlases);
+		try {
+			for (int a=0; a<layout.numberOfAtlases; a++) {
+				final int atlasNumber = a;
+				final BufferedImage atlas = free.take();
+				Arrays.fill(pixels(atlas), 0);
+
+				BufferedImage[] atlasArray = new BufferedImage[layout.numberOfAtlases];
+				atlasArray[atlasNumber] = atlas;
+				fill(pool, prefetcher, slicesOf(atlasNumber), atlasArray, done);
+
+				written.add(writer.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						try {
+							sink.atlasComplete(atlasNumber, atlas);
+						} finally {
+							free.put(atlas);
+						}
+						return null;
+					}
+				}));
+				// Stop early rather than building atlases nobody will write
+				for (Future<?> f : written) {
+					if (f.isDone()) f.get();
+				}
+			}
+			for (Future<?> f : written) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Atlas generation was interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new RuntimeException("Atlas generation failed", e.getCause());
+		} finally {
+			if (pool != null) pool.shutdownNow();
+			if (prefetcher != null) prefetcher.close();
+			writer.shutdownNow();
+		}
+	}
+
+	/** Slices held by one atlas, in the order they appear in it. */
+	public int[] slicesOf(int atlasNumber) {
+		int count = 0;
+		for (int i=0; i<layout.numberOfImages; i++) {
+			if (layout.atlasNumber(i) == atlasNumber) count++;
+		}
+		int[] slices = new int[count];
+		count = 0;
+		for (int i=0; i<layout.numberOfImages; i++) {
+			if (layout.atlasNumber(i) == atlasNumber) slices[count++] = i;
+		}
+		return slices;
+	}
+
+	private BufferedImage newAtlas() {
+		return new BufferedImage(layout.atlasWidth, layout.atlasHeight, BufferedImage.TYPE_INT_ARGB);
+	}
+
+	private ExecutorService newPool() {
+		if (numThreads == 1 || layout.numberOfImages < 2) return null;
+		return Executors.newFixedThreadPool(Math.min(numThreads, layout.numberOfImages));
+	}
+
+	/** A prefetcher for the slices (0-based) in the given order, or null if slices are read on demand. */
+	private SlicePrefetcher newPrefetcher(int[] slices) {
+		ImageStack stack = imp.getStack();
+		int depth = prefetchDepth >= 0 ? prefetchDepth : (stack.isVirtual() ? 2*numThreads : 0);
+		// The resize() route reads whole processors, so only the direct route reads ahead
+		if (depth == 0 || !isDirect() || slices.length < 2) return null;
+
+		int perPosition = format.slicesPerPixel;
+		int[] order = new int[slices.length*perPosition];
+		int count = 0;
+		for (int i : slices) {
+			for (int c=0; c<perPosition && perPosition*i + c < numberOfSlices; c++) {
+				order[count++] = stackIndex(perPosition*i + c);
+			}
+		}
+		return new SlicePrefetcher(stack, Arrays.copyOf(order, count), depth, Math.max(1, numThreads/2));
+	}
+
+	private boolean isDirect() {
+		return directResampling || format != AtlasFormat.RGB || filter != ResamplingFilter.BILINEAR;
+	}
+
+	private void fill(ExecutorService pool, final SlicePrefetcher prefetcher, int[] slices,
+			final BufferedImage[] atlasArray, final AtomicInteger done) {
+		final ImageStack stack = imp.getStack();
+		setupDisplay();
+		final Resampler resampler = isDirect() ? resampler(stack) : null;
+		final IntensityLut lut = intensityLut();
+
+		if (pool == null) {
+			for (int i : slices){
+				if (Thread.currentThread().isInterrupted()) {
+					throw new CancellationException("Atlas generation was cancelled");
+				}
+				buildSlice(stack, prefetcher, resampler, lut, i, atlasArray);
+				showProgress(done.incrementAndGet());
+			}
+			return;
+		}
+
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(slices.length);
+			for (int i : slices){
+				final int slice = i;
+				futures.add(pool.submit(new Runnable() {
+					public void run() {
+						buildSlice(stack, prefetcher, resampler, lut, slice, atlasArray);
+						showProgress(done.incrementAndGet());
+					}
+				}));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Atlas generation was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Atlas generation failed", e.getCause());
+		}
+	}
+
+	static int[] pixels(BufferedImage atlas) {
+		return ((DataBufferInt) atlas.getRaster().getDataBuffer()).getData();
+	}
+
+	private void buildSlice(ImageStack stack, SlicePrefetcher prefetcher,
+			Resampler resampler, IntensityLut lut, int i, BufferedImage[] atlasArray) {
+		BufferedImage atlas = atlasArray[layout.atlasNumber(i)];
+		if (format == AtlasFormat.PACKED) {
+			packSlices(stack, prefetcher, resampler, lut, i, pixels(atlas));
+			return;
+		}
+		int n = stackIndex(i);
+		if (resampler != null) {
+			// Resampling writes straight into the atlas; only the grey conversion counts as packing
+			Object slicePixels = prefetcher != null ? prefetcher.getPixels(n) : stack.getPixels(n);
+			long start = System.nanoTime();
+			resampler.resample(slicePixels, lut, pixels(atlas), layout.atlasWidth,
+					layout.xStartPixel(i), layout.yStartPixel(i));
+			timings.add(ExportTimings.Stage.RESAMPLE, start, ExportTimings.byteSize(slicePixels), 1);
+			if (format == AtlasFormat.LUMINANCE && slicePixels instanceof int[]) {
+				start = System.nanoTime();
+				toGrey(pixels(atlas), layout.atlasWidth, layout.xStartPixel(i), layout.yStartPixel(i));
+				timings.add(ExportTimings.Stage.PACK, start, 4L*layout.sliceWidth*layout.sliceHeight, 1);
+			}
+			return;
+		}
+
+		// Get slice and resize. ImageStack.getProcessor() hands out a fresh
+		// processor per call, so this is safe to do from several threads.
+		long start = System.nanoTime();
+		ImageProcessor slicePr = stack.getProcessor(n);
+		if (crop != null) {
+			slicePr.setRoi(crop.getRectangle());
+			slicePr = slicePr.crop();
+		}
+		if (!(slicePr instanceof ColorProcessor)) {
+			// Render with the display range and LUT the user is looking at
+			if (displayColorModel != null) slicePr.setColorModel(displayColorModel);
+			slicePr.setMinAndMax(displayMin, displayMax);
+		}
+		slicePr.setInterpolationMethod(ImageProcessor.BILINEAR);
+		slicePr = slicePr.resize(fullWidth, fullHeight);
+		if (fullWidth != layout.sliceWidth || fullHeight != layout.sliceHeight) {
+			slicePr.setRoi(regionX, regionY, layout.sliceWidth, layout.sliceHeight);
+			slicePr = slicePr.crop();
+		}
+		BufferedImage sliceTexture = slicePr.getBufferedImage();
+		timings.add(ExportTimings.Stage.RESAMPLE, start, ExportTimings.byteSize(stack.getPixels(n)), 1);
+
+		// Put slice into atlas in the correct position
+		start = System.nanoTime();
+		copySubImage(sliceTexture, atlas, layout.xStartPixel(i), layout.yStartPixel(i));
+		timings.add(ExportTimings.Stage.PACK, start, 4L*layout.sliceWidth*layout.sliceHeight, 1);
+	}
+
+	/** The resampler for this builder's slice size, region and filter. */
+	private Resampler resampler(ImageStack stack) {
+		if (resampler == null) {
+			Rectangle source = crop != null ? crop.getRectangle() : new Rectangle(0, 0, stack.getWidth(), stack.getHeight());
+			resampler = filter == ResamplingFilter.BILINEAR
+					? new SliceResampler(stack.getWidth(), source, fullWidth, fullHeight,
+							regionX, regionY, layout.sliceWidth, layout.sliceHeight)
+					: new KernelResampler(filter, stack.getWidth(), source, fullWidth, fullHeight,
+							regionX, regionY, layout.sliceWidth, layout.sliceHeight);
+		}
+		return resampler;
+	}
+
+	/** Stack index (1-based) of slice s (zero based) of the region, in the chosen channel and frame. */
+	private int stackIndex(int s) {
+		int z = firstSlice + s + (crop != null ? crop.z : 0);
+		return (frame-1)*nChannels*nSlices + z*nChannels + channel;
+	}
+
+	/**
+	 * Display range and LUT the user is looking at, for the chosen channel,
+	 * with the range set by {@link #setIntensityRange} for 16 and 32-bit data.
+	 */
+	private void setupDisplay() {
+		ImageProcessor displayed = imp.getProcessor();
+		displayMin = displayed.getMin();
+		displayMax = displayed.getMax();
+		displayColorModel = displayed.getColorModel();
+		// For 8-bit data the current colour model has the display range built in
+		displayLut = SliceResampler.lookupTable(displayed);
+		if (imp.isComposite()) {
+			LUT channelLut = ((CompositeImage)imp).getChannelLut(channel);
+			displayMin = channelLut.min;
+			displayMax = channelLut.max;
+			displayColorModel = channelLut;
+			displayLut = SliceResampler.lookupTable(channelLut);
+			if (imp.getBitDepth() == 8 && (displayMin != 0 || displayMax != 255)) {
+				// Same mapping as ByteProcessor.setMinAndMax()
+				int[] table = new int[256];
+				for (int v=0; v<256; v++) {
+					int index = (int)(((v - displayMin)/(displayMax - displayMin))*256);
+					table[v] = displayLut[Math.max(0, Math.min(255, index))];
+				}
+				displayLut = table;
+			}
+		}
+		int bitDepth = imp.getBitDepth();
+		if (intensityRange != null && (bitDepth == 16 || bitDepth == 32)) {
+			displayMin = intensityRange[0];
+			displayMax = intensityRange[1];
+		}
+	}
+
+	/** The table mapping grey values to atlas colours, built once from the display settings. */
+	private IntensityLut intensityLut() {
+		if (intensityLut == null) {
+			int[] lut = format == AtlasFormat.RGB ? displayLut : SliceResampler.greyTable();
+			intensityLut = IntensityLut.forBitDepth(imp.getBitDepth(), displayMin, displayMax, lut);
+		}
+		return intensityLut;
+	}
+
+	/** Put the (up to) four slices of packed position i into the red, green, blue and alpha channels. */
+	private void packSlices(ImageStack stack, SlicePrefetcher prefetcher,
+			Resampler resampler, IntensityLut lut, int i, int[] dst) {
+		int width = layout.sliceWidth, height = layout.sliceHeight;
+		int[] slice = packScratch.get();
+		if (slice == null || slice.length != width*height) {
+			slice = new int[width*height];
+			packScratch.set(slice);
+		}
+		int x0 = layout.xStartPixel(i), y0 = layout.yStartPixel(i);
+		for (int c=0; c<4; c++) {
+			int s = 4*i + c;
+			if (s >= numberOfSlices) break;
+			int n = stackIndex(s);
+			Object slicePixels = prefetcher != null ? prefetcher.getPixels(n) : stack.getPixels(n);
+			long start = System.nanoTime();
+			resampler.resample(slicePixels, lut, slice, width, 0, 0);
+			timings.add(ExportTimings.Stage.RESAMPLE, start, ExportTimings.byteSize(slicePixels), 1);
+
+			start = System.nanoTime();
+			toGrey(slice, width, 0, 0);
+			int shift = AtlasFormat.PACKED_SHIFT[c];
+			for (int y=0; y<height; y++) {
+				int offset = (y0 + y)*layout.atlasWidth + x0;
+				for (int x=0; x<width; x++) {
+					dst[offset + x] |= (slice[y*width + x]&0xff) << shift;
+				}
+			}
+			timings.add(ExportTimings.Stage.PACK, start, 4L*width*height, 1);
+		}
+	}
+
+	/** Replace the colours of the slice at (x0, y0) by their (unweighted) grey values. */
+	private void toGrey(int[] dst, int stride, int x0, int y0) {
+		for (int y=0; y<layout.sliceHeight; y++) {
+			int offset = (y0 + y)*stride + x0;
+			for (int x=0; x<layout.sliceWidth; x++) {
+				int p = dst[offset + x];
+				int v = (((p>>16)&0xff) + ((p>>8)&0xff) + (p&0xff))/3;
+				dst[offset + x] = 0xff000000 | (v<<16) | (v<<8) | v;
+			}
+		}
+	}
+
+	private void showProgress(int slicesDone) {
+		IJ.showProgress(progressStart + progressRange*((float)slicesDone/(float)layout.numberOfImages));
+	}
+
+	static void copySubImage(final BufferedImage src,
+			final BufferedImage dst, final int dx, final int dy) {
+		int[] srcbuf = ((DataBufferInt) src.getRaster().getDataBuffer()).getData();
+		int[] dstbuf = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+		int width = src.getWidth();
+		int height = src.getHeight();
+		int dstoffs = dx + dy * dst.getWidth();
+		int srcoffs = 0;
+		for (int y = 0 ; y < height ; y++ , dstoffs+= dst.getWidth(), srcoffs += width ) {
+			System.arraycopy(srcbuf, srcoffs , dstbuf, dstoffs, width);
+		}
+	}
+
+	/** Default worker count: the ImageJ "parallel threads" setting. */
+	public static int defaultThreads() {
+		return Prefs.getThreads();
+	}
+
+}
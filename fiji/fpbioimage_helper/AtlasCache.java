@@ -0,0 +1,220 @@
+package fpbioimage_helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ij.IJ;
+import ij.Prefs;
+
+/**
+ * On-disk cache of encoded atlas sets, so an export that only changes the
+ * unique name, voxel sizes or viewer settings doesn't resample and re-encode
+ * anything.
+ *
+ * Each entry is a folder named after its key, which the exporter derives from
+ * the source pixels and every setting that changes the atlas bytes. Files are
+ * stored under names that don't include the unique name, and copied in and
+ * out, or read and written as buffers when nothing is kept locally. The
+ * cache is kept below a size limit by deleting the least recently used
+ * entries; an entry's folder time stamp is its last use.
+ */
+public class AtlasCache {
+
+	// One lock per folder: each export opens its own cache, and parallel
+	// exports must not evict or replace entries the others are using
+	private static final Map<String, Object> locks = new HashMap<String, Object>();
+
+	private final File root;
+	private final long maxBytes;
+	private final Object lock;
+
+	public AtlasCache(File root, long maxBytes) {
+		this.root = root;
+		this.maxBytes = maxBytes;
+		this.lock = lockFor(root);
+	}
+
+	/** The cache in the folder and with the size (in MB) set in the preferences. */
+	public static AtlasCache fromPrefs() {
+		String folder = Prefs.get("fp.persistent.cachedir",
+				System.getProperty("user.home") + File.separator + ".fpbioimage" + File.separator + "atlascache");
+		long megabytes = (long)Prefs.get("fp.persistent.cachesize", 2048);
+		return new AtlasCache(new File(folder), megabytes*1024*1024);
+	}
+
+	private static synchronized Object lockFor(File root) {
+		String path;
+		try {
+			path = root.getCanonicalPath();
+		} catch (IOException e) {
+			path = root.getAbsolutePath();
+		}
+		Object lock = locks.get(path);
+		if (lock == null) {
+			lock = new Object();
+			locks.put(path, lock);
+		}
+		return lock;
+	}
+
+	/**
+	 * Copy the entry for key into place. files maps each stored name to the
+	 * path it should be copied to. Returns false, without copying anything,
+	 * if the entry is missing or incomplete.
+	 */
+	public boolean restore(String key, Map<String, String> files) {
+		synchronized (lock) {
+			File entry = new File(root, key);
+			if (!entry.isDirectory()) return false;
+			for (String name : files.keySet()) {
+				if (!new File(entry, name).isFile()) return false;
+			}
+			try {
+				for (Map.Entry<String, String> file : files.entrySet()) {
+					File target = new File(file.getValue());
+					target.getParentFile().mkdirs();
+					Files.copy(new File(entry, file.getKey()).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (IOException e) {
+				IJ.log("FPBioimage: could not read cached atlases, generating them again: " + e.getMessage());
+				return false;
+			}
+			entry.setLastModified(System.currentTimeMillis());
+			return true;
+		}
+	}
+
+	/**
+	 * The contents of the files with the given stored names in the entry for
+	 * key, or null if the entry is missing or incomplete.
+	 */
+	public Map<String, byte[]> read(String key, Collection<String> names) {
+		synchronized (lock) {
+			File entry = new File(root, key);
+			if (!entry.isDirectory()) return null;
+			Map<String, byte[]> files = new HashMap<String, byte[]>();
+			try {
+				for (String name : names) {
+					File file = new File(entry, name);
+					if (!file.isFile()) return null;
+					files.put(name, Files.readAllBytes(file.toPath()));
+				}
+			} catch (IOException e) {
+				IJ.log("FPBioimage: could not read cached atlases, generating them again: " + e.getMessage());
+				return null;
+			}
+			entry.setLastModified(System.currentTimeMillis());
+			return files;
+		}
+	}
+
+	/**
+	 * Add an entry: files maps each stored name to the file to copy from.
+	 * Failures are logged but not thrown, as the export itself has succeeded.
+	 */
+	public void store(String key, Map<String, String> files) {
+		synchronized (lock) {
+			File temp = new File(root, key + ".tmp");
+			try {
+				deleteRecursively(temp);
+				for (Map.Entry<String, String> file : files.entrySet()) {
+					File target = new File(temp, file.getKey());
+					target.getParentFile().mkdirs();
+					Files.copy(new File(file.getValue()).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (IOException e) {
+				IJ.log("FPBioimage: could not add atlases to the cache: " + e.getMessage());
+				deleteRecursively(temp);
+				return;
+			}
+			commit(key, temp);
+		}
+	}
+
+	/** Add an entry from buffers: files maps each stored name to its contents. */
+	public void write(String key, Map<String, byte[]> files) {
+		synchronized (lock) {
+			File temp = new File(root, key + ".tmp");
+			try {
+				deleteRecursively(temp);
+				for (Map.Entry<String, byte[]> file : files.entrySet()) {
+					File target = new File(temp, file.getKey());
+					target.getParentFile().mkdirs();
+					Files.write(target.toPath(), file.getValue());
+				}
+			} catch (IOException e) {
+				IJ.log("FPBioimage: could not add atlases to the cache: " + e.getMessage());
+				deleteRecursively(temp);
+				return;
+			}
+			commit(key, temp);
+		}
+	}
+
+	/** Move a completed entry into place and make room for it. */
+	private void commit(String key, File temp) {
+		File entry = new File(root, key);
+		try {
+			// Readers only ever see complete entries
+			deleteRecursively(entry);
+			if (!temp.renameTo(entry)) {
+				throw new IOException("Could not rename " + temp);
+			}
+			entry.setLastModified(System.currentTimeMillis());
+		} catch (IOException e) {
+			IJ.log("FPBioimage: could not add atlases to the cache: " + e.getMessage());
+			deleteRecursively(temp);
+			return;
+		}
+		evict();
+	}
+
+	/** Delete least recently used entries until the cache fits in its size limit. */
+	private void evict() {
+		File[] entries = root.listFiles();
+		if (entries == null) return;
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		long total = 0;
+		List<File> evicted = new ArrayList<File>();
+		for (File entry : entries) {
+			total += size(entry);
+			// The newest entry is kept even if it is bigger than the whole cache
+			if (total > maxBytes && entry != entries[0]) evicted.add(entry);
+		}
+		for (File entry : evicted) {
+			deleteRecursively(entry);
+		}
+	}
+
+	private static long size(File file) {
+		if (file.isFile()) return file.length();
+		long size = 0;
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) size += size(child);
+		}
+		return size;
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) deleteRecursively(child);
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,110 @@
+package fpbioimage_helper;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes the next level of a resolution pyramid from the atlases of the
+ * level above: every output voxel is the 2x2x2 box average of the voxels it
+ * covers, so width, height and depth are halved (rounding up; edge voxels
+ * are repeated).
+ *
+ * The source atlases can be handed over in any order as they are completed,
+ * so a downsampler can sit behind {@link AtlasBuilder#stream} as well as take
+ * the result of {@link AtlasBuilder#build}. Only the sums of slices still
+ * waiting for their z-neighbour are kept besides the (eight times smaller)
+ * output atlases.
+ */
+public class AtlasDownsampler implements AtlasSink {
+
+	private final AtlasLayout source;
+	private final AtlasLayout target;
+	private final BufferedImage[] atlasArray;
+
+	// Channel sums of output slices that have seen one of their two source slices
+	private final Map<Integer, int[]> partial = new HashMap<Integer, int[]>();
+
+	public AtlasDownsampler(AtlasLayout source) {
+		this.source = source;
+		this.target = halve(source);
+		atlasArray = new BufferedImage[target.numberOfAtlases];
+		for (int i=0; i<atlasArray.length; i++) {
+			atlasArray[i] = new BufferedImage(target.atlasWidth, target.atlasHeight, BufferedImage.TYPE_INT_ARGB);
+		}
+	}
+
+	/** Layout of the level below: half the width, height and depth, rounded up. */
+	public static AtlasLayout halve(AtlasLayout layout) {
+		return new AtlasLayout((layout.sliceWidth+1)/2, (layout.sliceHeight+1)/2,
+				(layout.numberOfImages+1)/2, layout.numberOfAtlases, layout.packing);
+	}
+
+	public AtlasLayout getLayout() {
+		return target;
+	}
+
+	/** The downsampled atlases, complete once every source atlas has been added. */
+	public BufferedImage[] getAtlases() {
+		if (!partial.isEmpty()) {
+			throw new IllegalStateException("Not all source atlases have been added");
+		}
+		return atlasArray;
+	}
+
+	@Override
+	public synchronized void atlasComplete(int atlasNumber, BufferedImage atlas) {
+		int[] src = AtlasBuilder.pixels(atlas);
+		for (int i=0; i<source.numberOfImages; i++) {
+			if (source.atlasNumber(i) != atlasNumber) continue;
+			int k = i/2;
+			// The last slice of an odd-sized stack stands in for its missing neighbour
+			boolean single = 2*k + 1 >= source.numberOfImages;
+			int[] sums = partial.remove(k);
+			boolean first = sums == null;
+			if (first) sums = new int[3*target.sliceWidth*target.sliceHeight];
+			addSlice(src, i, single ? 2 : 1, sums);
+			if (first && !single) {
+				partial.put(k, sums);
+			} else {
+				writeSlice(k, sums);
+			}
+		}
+	}
+
+	private void addSlice(int[] src, int i, int weight, int[] sums) {
+		int stride = source.atlasWidth;
+		int x0 = source.xStartPixel(i), y0 = source.yStartPixel(i);
+		int lastX = source.sliceWidth - 1, lastY = source.sliceHeight - 1;
+		int s = 0;
+		for (int y=0; y<target.sliceHeight; y++) {
+			int rowA = (y0 + 2*y)*stride + x0;
+			int rowB = (y0 + Math.min(2*y+1, lastY))*stride + x0;
+			for (int x=0; x<target.sliceWidth; x++) {
+				int xa = 2*x, xb = Math.min(2*x+1, lastX);
+				int p00 = src[rowA + xa], p01 = src[rowA + xb];
+				int p10 = src[rowB + xa], p11 = src[rowB + xb];
+				sums[s++] += weight*(((p00>>16)&0xff) + ((p01>>16)&0xff) + ((p10>>16)&0xff) + ((p11>>16)&0xff));
+				sums[s++] += weight*(((p00>>8)&0xff) + ((p01>>8)&0xff) + ((p10>>8)&0xff) + ((p11>>8)&0xff));
+				sums[s++] += weight*((p00&0xff) + (p01&0xff) + (p10&0xff) + (p11&0xff));
+			}
+		}
+	}
+
+	private void writeSlice(int k, int[] sums) {
+		int[] dst = AtlasBuilder.pixels(atlasArray[target.atlasNumber(k)]);
+		int stride = target.atlasWidth;
+		int x0 = target.xStartPixel(k), y0 = target.yStartPixel(k);
+		int s = 0;
+		for (int y=0; y<target.sliceHeight; y++) {
+			int offset = (y0 + y)*stride + x0;
+			for (int x=0; x<target.sliceWidth; x++) {
+				int r = (sums[s++] + 4) >> 3;
+				int g = (sums[s++] + 4) >> 3;
+				int b = (sums[s++] + 4) >> 3;
+				dst[offset + x] = 0xff000000 | (r<<16) | (g<<8) | b;
+			}
+		}
+	}
+
+}
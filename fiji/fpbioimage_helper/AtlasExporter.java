@@ -0,0 +1,1015 @@
+package fpbioimage_helper;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Turns one image into an FPBioimage dataset folder: the PNG atlases,
+ * index.html, jsonInfo.json and the upload manifest. Used both by the
+ * interactive plugin and by headless batch exports.
+ *
+ * Volumes too large for one atlas set can be split into bricks, each written
+ * as its own atlas set in a sub-folder, with the brick grid described in the
+ * top-level jsonInfo.json. Each atlas set can also come with a pyramid of
+ * lower resolution levels, so viewers can show something small first.
+ * Hyperstacks get one atlas set per channel and timepoint.
+ *
+ * With {@link ExportSettings#useCache} atlas sets are looked up in the
+ * {@link AtlasCache} before they are generated, so only the json and html
+ * files are written again when the pixels and rendering haven't changed.
+ *
+ * Time spent in each stage is logged and written to timings.json, next to
+ * jsonInfo.json; the upload rewrites it with the upload added.
+ *
+ * When nothing is to be kept locally, {@link #exportAndUpload} uploads each
+ * file from memory as soon as it is encoded instead of writing the folder.
+ * {@link #exportToPreview} does the same into a {@link PreviewServer}, so
+ * the dataset can be looked at in a browser without writing any files.
+ *
+ * An export can be stopped from another thread with {@link #cancel};
+ * {@link #cleanUp} then removes what it wrote or uploaded so far.
+ */
+public class AtlasExporter {
+
+	private final ImagePlus imp;
+	private final ExportSettings settings;
+
+	private final int numberOfAtlases = 8;
+	private String savepath;
+	private String htmlSavePath;
+	private String jsonSavePath;
+	private String timingsSavePath;
+	private ExportTimings timings;
+
+	// Set while exporting straight to the upload; no local files are written then
+	private PipelinedUploader uploader;
+	private String keyPrefix;
+	private UploadManifest manifest;
+	private AtlasCache cache;
+
+	// Set by cancel(), from another thread
+	private volatile boolean cancelled;
+	private volatile AtlasUploader activeUploader;
+	private volatile boolean complete;
+	private StorageBackend storage;
+	private final List<String> uploadedKeys = Collections.synchronizedList(new ArrayList<String>());
+
+	// Pixel hashes by set folder, computed at most once per channel and timepoint
+	private final Map<String, String> volumeHashes = new ConcurrentHashMap<String, String>();
+
+	// Stack-wide intensity range and viewer defaults by channel, if measured
+	private final Map<Integer, double[]> intensityRanges = new ConcurrentHashMap<Integer, double[]>();
+	private final Map<Integer, double[]> viewerDefaults = new ConcurrentHashMap<Integer, double[]>();
+
+	// Part of the stack exported, and the resolution it is resized to
+	private CropBox crop;
+	private int resX;
+	private int resY;
+
+	// Pixels covered by slices, and all pixels, of the atlases of the dataset
+	private final AtomicLong slicePixels = new AtomicLong();
+	private final AtomicLong atlasPixels = new AtomicLong();
+
+	// Filled in by several threads when hyperstack sets are exported in parallel
+	private final List<String> folders = Collections.synchronizedList(new ArrayList<String>());
+	private final List<String> datasetFiles = Collections.synchronizedList(new ArrayList<String>());
+	private final List<String> uploadFiles = Collections.synchronizedList(new ArrayList<String>());
+
+	/** Channel and timepoint an atlas set is made from, and the threads it may use. */
+	private static class Position {
+		final int channel;
+		final int frame;
+		final int threads;
+
+		Position(int channel, int frame, int threads) {
+			this.channel = channel;
+			this.frame = frame;
+			this.threads = threads;
+		}
+	}
+
+	public AtlasExporter(ImagePlus imp, ExportSettings settings) {
+		this.imp = imp;
+		this.settings = settings;
+	}
+
+	/**
+	 * Export into server without writing anything locally, replacing an
+	 * earlier preview of the same name. Returns the address of the page.
+	 */
+	public String exportToPreview(PreviewServer server) throws IOException {
+		server.deleteDataset(settings.uniqueName);
+		exportAndUpload(server, settings.uniqueName);
+		return server.publicUrl(settings.uniqueName + "/");
+	}
+
+	/**
+	 * Serve the dataset last written by {@link #export} from server as well,
+	 * replacing an earlier preview of the same name. Returns the address of
+	 * the page.
+	 */
+	public String preview(PreviewServer server) throws IOException {
+		server.deleteDataset(settings.uniqueName);
+		for (String file : datasetFiles.toArray(new String[0])) {
+			server.put(settings.uniqueName + "/" + manifest.relativeName(file), Files.readAllBytes(Paths.get(file)));
+		}
+		return server.publicUrl(settings.uniqueName + "/");
+	}
+
+	/**
+	 * Write the dataset to &lt;parentFolder&gt;/&lt;uniqueName&gt;. Progress runs
+	 * from 0.1 to 0.8 of the ImageJ progress bar.
+	 */
+	public void export(String parentFolder) throws IOException {
+		uploader = null;
+		exportDataset(parentFolder);
+	}
+
+	/**
+	 * Export straight to storage under keyPrefix without writing anything
+	 * locally: each atlas is uploaded as soon as it is encoded, while the
+	 * next one is being built. Progress runs from 0.1 to 0.8 of the ImageJ
+	 * progress bar, then waits for the last uploads.
+	 */
+	public void exportAndUpload(StorageBackend storage, String keyPrefix) throws IOException {
+		this.keyPrefix = keyPrefix;
+		this.storage = storage;
+		uploader = new PipelinedUploader(storage, settings.numThreads);
+		try {
+			// Nothing is created here; the folder only gives the files their paths
+			exportDataset(System.getProperty("java.io.tmpdir"));
+			IJ.showStatus("Finishing upload to " + storage.getName());
+			uploader.finish();
+		} finally {
+			uploader.close();
+			uploadedKeys.addAll(uploader.getUploadedKeys());
+			uploader = null;
+		}
+		timings.log(settings.uniqueName);
+		IJ.showProgress(1.0);
+	}
+
+	private void exportDataset(String parentFolder) throws IOException {
+		// Get canonical filenames for relative paths
+		savepath = new File(parentFolder + "/" + settings.uniqueName).getCanonicalPath();
+		htmlSavePath =  savepath + "/index.html";
+		jsonSavePath = savepath + "/jsonInfo.json";
+		timingsSavePath = savepath + "/" + ExportTimings.FILE_NAME;
+		timings = new ExportTimings();
+		complete = false;
+		if (uploader != null) uploader.setTimings(timings);
+		folders.clear();
+		datasetFiles.clear();
+		uploadFiles.clear();
+		slicePixels.set(0);
+		atlasPixels.set(0);
+		makeFolder(savepath);
+		cache = settings.useCache ? AtlasCache.fromPrefs() : null;
+		measureIntensities();
+		findCrop();
+
+		// Need to convert the PNG image stack into 8 pretty images
+		IJ.showStatus("Creating FP atlases");
+		int numberOfImages = crop.depth; // Not giving z-scaling option in imageJ.
+		String extraFields;
+		String pathToImages = "./";
+		boolean hyperstack = imp.getNChannels() > 1 || imp.getNFrames() > 1;
+		// Viewers that don't know about hyperstacks show the first channel and frame
+		int channel = hyperstack ? 1 : imp.getChannel();
+		if (hyperstack) {
+			extraFields = exportHyperstack(numberOfImages);
+			if (settings.brickSize == 0) extraFields += newLayout(resX, resY, numberOfImages).jsonFields();
+			pathToImages = setFolder(1, 1) + "/";
+		} else {
+			Position position = new Position(imp.getChannel(), imp.getFrame(), settings.numThreads);
+			extraFields = exportVolume(savepath, position, numberOfImages, 0.1, 0.65);
+		}
+		extraFields += cropFields();
+
+		IJ.log(String.format(Locale.ROOT, "FPBioimage: %s: %.1f%% of the atlas pixels are padding (%s packing)",
+				settings.uniqueName, 100*wastedFraction(), AtlasPacking.forName(settings.atlasPacking).label.toLowerCase(Locale.ROOT)));
+
+		// And now to make the webpage
+		checkCancelled();
+		IJ.showStatus("Formatting webpage");
+		double[] voxelSize = voxelSize(1, 1, 1);
+		// Bricks, levels and hyperstacks are only described in the json files, so they have to go
+		// too; a preview has no FPB Host page to fall back on, so it always needs them
+		boolean uploadJson = settings.brickSize > 0 || settings.levels > 1 || hyperstack
+				|| (uploader != null && storage instanceof PreviewServer);
+		writeTemplate("/templateWebpage.html", htmlSavePath, true, "./", numberOfImages, resX, resY, voxelSize,
+				channel, "");
+		writeTemplate("/jsonTemplate.json", jsonSavePath, uploadJson, pathToImages, numberOfImages, resX, resY,
+				voxelSize, channel, extraFields);
+		if (uploader != null) {
+			complete = true;
+			return;
+		}
+
+		// Record content hashes so re-uploads can skip unchanged files
+		manifest = UploadManifest.create(savepath, datasetFiles.toArray(new String[datasetFiles.size()]));
+		manifest.write(savepath + "/" + UploadManifest.FILE_NAME);
+		datasetFiles.add(savepath + "/" + UploadManifest.FILE_NAME);
+
+		// Not part of the manifest: rewritten after the upload
+		timings.log(settings.uniqueName);
+		timings.write(timingsSavePath);
+		datasetFiles.add(timingsSavePath);
+		complete = true;
+		IJ.showProgress(0.8);
+	}
+
+	/**
+	 * Export each channel and timepoint of a hyperstack as its own atlas set,
+	 * in c&lt;C&gt;_t&lt;T&gt; sub-folders with their own jsonInfo.json. Sets are
+	 * generated in parallel, sharing the worker threads. A timepoint whose
+	 * pixels are identical to the previous timepoint of the same channel is
+	 * not exported again, but points at the earlier set. Returns the json
+	 * fields listing all sets.
+	 */
+	private String exportHyperstack(final int numberOfImages) throws IOException {
+		final int channels = imp.getNChannels();
+		final int frames = imp.getNFrames();
+		int parallel = Math.max(1, Math.min(settings.numThreads, channels*frames));
+		ExecutorService pool = Executors.newFixedThreadPool(parallel);
+		try {
+			// Find the timepoints that repeat the one before
+			IJ.showStatus("Comparing timepoints");
+			boolean[][] repeated = new boolean[channels][frames];
+			if (frames > 1) {
+				List<Future<String>> hashes = new ArrayList<Future<String>>(channels*frames);
+				for (int c=1; c<=channels; c++) {
+					for (int t=1; t<=frames; t++) {
+						final int channel = c, frame = t;
+						hashes.add(pool.submit(new Callable<String>() {
+							public String call() {
+								return volumeHash(channel, frame);
+							}
+						}));
+					}
+				}
+				for (int c=0; c<channels; c++) {
+					for (int t=0; t<frames; t++) {
+						repeated[c][t] = t > 0 && hashes.get(c*frames + t).get().equals(hashes.get(c*frames + t-1).get());
+					}
+				}
+			}
+
+			String[][] folderOf = new String[channels][frames];
+			List<int[]> unique = new ArrayList<int[]>();
+			for (int c=1; c<=channels; c++) {
+				for (int t=1; t<=frames; t++) {
+					if (repeated[c-1][t-1]) {
+						folderOf[c-1][t-1] = folderOf[c-1][t-2];
+					} else {
+						folderOf[c-1][t-1] = setFolder(c, t);
+						unique.add(new int[] {c, t});
+					}
+				}
+			}
+			if (unique.size() < channels*frames) {
+				IJ.log("FPBioimage: " + (channels*frames - unique.size()) + " repeated timepoints are shared, not exported again");
+			}
+
+			// Export the distinct sets, several at a time
+			IJ.showStatus("Creating FP atlases for " + unique.size() + " channels/timepoints");
+			final int threadsPerSet = Math.max(1, settings.numThreads / Math.min(parallel, unique.size()));
+			final AtomicInteger done = new AtomicInteger();
+			final int total = unique.size();
+			List<Future<Void>> exports = new ArrayList<Future<Void>>(total);
+			for (final int[] ct : unique) {
+				exports.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						checkCancelled();
+						String folder = savepath + "/" + setFolder(ct[0], ct[1]);
+						makeFolder(folder);
+						// Builders working side by side can't share the progress bar
+						double progress = 0.1 + 0.65*done.get()/total;
+						String extra = exportVolume(folder, new Position(ct[0], ct[1], threadsPerSet), numberOfImages, progress, 0.0);
+
+						String setJson = folder + "/jsonInfo.json";
+						writeTemplate("/jsonTemplate.json", setJson, true, "./", numberOfImages, resX, resY,
+								voxelSize(1, 1, 1), ct[0], ",\n        \"channel\": " + ct[0] + ", \"frame\": " + ct[1] + extra + cropFields());
+						IJ.showProgress(0.1 + 0.65*done.incrementAndGet()/total);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : exports) {
+				f.get();
+			}
+
+			StringBuilder sets = new StringBuilder(",\n        \"channels\": " + channels + ", \"frames\": " + frames
+					+ ",\n        \"atlasSets\": [");
+			String separator = "";
+			for (int c=1; c<=channels; c++) {
+				for (int t=1; t<=frames; t++) {
+					sets.append(separator).append("\n                {\"channel\": " + c + ", \"frame\": " + t
+							+ ", \"pathToImages\": \"" + folderOf[c-1][t-1] + "/\"}");
+					separator = ",";
+				}
+			}
+			return sets.append("\n        ]").toString();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Export was interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new RuntimeException("Export failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** MD5 of the raw pixels of all z-slices of one channel and timepoint. */
+	private String volumeHash(int channel, int frame) {
+		String hash = volumeHashes.get(setFolder(channel, frame));
+		if (hash == null) {
+			hash = computeVolumeHash(channel, frame, imp.getNSlices());
+			volumeHashes.put(setFolder(channel, frame), hash);
+		}
+		return hash;
+	}
+
+	private String computeVolumeHash(int channel, int frame, int numberOfImages) {
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		ImageStack stack = imp.getStack();
+		for (int z=1; z<=numberOfImages; z++) {
+			Object pixels = stack.getPixels((frame-1)*imp.getNChannels()*numberOfImages + (z-1)*imp.getNChannels() + channel);
+			ByteBuffer bytes;
+			if (pixels instanceof byte[]) {
+				bytes = ByteBuffer.wrap((byte[])pixels);
+			} else if (pixels instanceof short[]) {
+				short[] p = (short[])pixels;
+				bytes = ByteBuffer.allocate(2*p.length);
+				bytes.asShortBuffer().put(p);
+			} else if (pixels instanceof float[]) {
+				float[] p = (float[])pixels;
+				bytes = ByteBuffer.allocate(4*p.length);
+				bytes.asFloatBuffer().put(p);
+			} else {
+				int[] p = (int[])pixels;
+				bytes = ByteBuffer.allocate(4*p.length);
+				bytes.asIntBuffer().put(p);
+			}
+			md5.update(bytes);
+		}
+		return Hex.encodeHexString(md5.digest());
+	}
+
+	/**
+	 * With a stack-wide {@link IntensityRange}, measure each channel of a 16
+	 * or 32-bit image in one pass before any atlases are built, so all
+	 * timepoints, bricks and levels of a channel get the same contrast. The
+	 * same histogram gives the viewer's starting intensity and threshold.
+	 */
+	private void measureIntensities() throws IOException {
+		intensityRanges.clear();
+		viewerDefaults.clear();
+		IntensityRange mode = IntensityRange.forName(settings.intensityRange);
+		int bitDepth = imp.getBitDepth();
+		if (mode == IntensityRange.DISPLAY || (bitDepth != 16 && bitDepth != 32)) return;
+		int channels = imp.getNChannels();
+		for (int c=1; c<=channels; c++) {
+			checkCancelled();
+			IJ.showStatus("Measuring intensities" + (channels > 1 ? " of channel " + c : ""));
+			IntensityHistogram histogram = IntensityHistogram.measure(imp, c, settings.numThreads, timings);
+			double[] range = histogram.range(mode);
+			if (range == null) continue;
+			intensityRanges.put(c, range);
+			viewerDefaults.put(c, histogram.viewerDefaults(range));
+		}
+	}
+
+	/**
+	 * With auto-crop, find the box of voxels above the background in any
+	 * channel and timepoint, so empty margins and slices are left out of
+	 * every atlas set, brick and level. The requested resolution applies to
+	 * the cropped volume, but isn't allowed to enlarge it. Without auto-crop,
+	 * or if the whole stack is background, the box is the whole stack.
+	 */
+	private void findCrop() throws IOException {
+		int width = imp.getWidth(), height = imp.getHeight(), depth = imp.getNSlices();
+		CropBox found = null;
+		if (settings.autoCrop) {
+			checkCancelled();
+			IJ.showStatus("Finding empty space");
+			found = CropBox.find(imp, cropThresholds(), settings.numThreads, timings);
+			if (found == null) {
+				IJ.log("FPBioimage: " + settings.uniqueName + " has nothing above the background, not cropped");
+			} else if (!found.isWhole(width, height, depth)) {
+				IJ.log("FPBioimage: " + settings.uniqueName + " cropped to " + found.width + "x" + found.height + "x" + found.depth
+						+ " at " + found.x + "," + found.y + "," + found.z + " of " + width + "x" + height + "x" + depth);
+			}
+		}
+		if (found == null) {
+			crop = new CropBox(0, 0, 0, width, height, depth);
+			resX = settings.resX;
+			resY = settings.resY;
+		} else {
+			crop = found;
+			resX = Math.min(settings.resX, crop.width);
+			resY = Math.min(settings.resY, crop.height);
+		}
+		if (settings.brickSize == 0 && crop.depth > ExportSettings.MAX_SIZE) {
+			throw new IOException("Maximum Z size is " + ExportSettings.MAX_SIZE + ", but " + settings.uniqueName
+					+ " has " + crop.depth + " slices" + (found == null ? "" : " after cropping") + ". Please use bricks.");
+		}
+	}
+
+	/** Json fields placing the exported volume in the stack, if it was cropped. */
+	private String cropFields() {
+		return settings.autoCrop ? crop.jsonFields(imp.getWidth(), imp.getHeight(), imp.getNSlices()) : "";
+	}
+
+	/**
+	 * Background level of each channel: the crop threshold if one was given,
+	 * otherwise the value drawn black, the bottom of the channel's intensity
+	 * range. RGB channels are empty when black.
+	 */
+	private double[] cropThresholds() {
+		double[] thresholds = new double[imp.getNChannels()];
+		for (int c=1; c<=thresholds.length; c++) {
+			double[] range = intensityRanges.get(c);
+			if (!Double.isNaN(settings.cropThreshold)) {
+				thresholds[c-1] = settings.cropThreshold;
+			} else if (imp.getBitDepth() == 24) {
+				thresholds[c-1] = 0;
+			} else if (range != null) {
+				thresholds[c-1] = range[0];
+			} else if (imp instanceof CompositeImage) {
+				thresholds[c-1] = ((CompositeImage)imp).getChannelLut(c).min;
+			} else {
+				thresholds[c-1] = imp.getDisplayRangeMin();
+			}
+		}
+		return thresholds;
+	}
+
+	/** Folder holding channel c, timepoint t (both 1-based) of a hyperstack, relative to the dataset folder. */
+	public static String setFolder(int channel, int frame) {
+		return "c" + channel + "_t" + frame;
+	}
+
+	/**
+	 * Write one channel and timepoint of the volume to folder, as a single
+	 * atlas set or as bricks. Returns the json fields describing the bricks or
+	 * resolution levels, if any.
+	 */
+	private String exportVolume(String folder, Position position, int numberOfImages,
+			double progressStart, double progressRange) throws IOException {
+		if (settings.brickSize > 0) {
+			return exportBricks(folder, position, numberOfImages, progressStart, progressRange);
+		}
+		AtlasLayout layout = newLayout(resX, resY, numberOfImages);
+		return writeAtlasSet(folder, layout, newBuilder(layout, numberOfImages, position), position,
+				progressStart, progressRange);
+	}
+
+	/**
+	 * Split the resized volume into bricks of at most brickSize voxels along
+	 * each axis and write each brick as its own atlas set (with its own
+	 * jsonInfo.json) in brick_X_Y_Z. Bricks are streamed one at a time, each
+	 * using all the worker threads. Returns the json fields describing the
+	 * brick grid.
+	 */
+	private String exportBricks(String parent, Position position, int numberOfImages,
+			double progressStart, double progressRange) throws IOException {
+		int size = settings.brickSize;
+		int bricksX = (resX + size - 1) / size;
+		int bricksY = (resY + size - 1) / size;
+		int bricksZ = (numberOfImages + size - 1) / size;
+		int total = bricksX * bricksY * bricksZ;
+		double range = progressRange / total;
+
+		int done = 0;
+		for (int bz=0; bz<bricksZ; bz++) {
+			for (int by=0; by<bricksY; by++) {
+				for (int bx=0; bx<bricksX; bx++) {
+					checkCancelled();
+					int x = bx*size, y = by*size, z = bz*size;
+					int width = Math.min(size, resX - x);
+					int height = Math.min(size, resY - y);
+					int depth = Math.min(size, numberOfImages - z);
+
+					String folder = parent + "/" + brickFolder(bx, by, bz);
+					makeFolder(folder);
+
+					IJ.showStatus("Creating FP atlases for brick " + (done+1) + " of " + total);
+					AtlasLayout layout = newLayout(width, height, depth);
+					AtlasBuilder builder = newBuilder(layout, depth, position);
+					builder.setRegion(resX, resY, x, y, z);
+					String levels = writeAtlasSet(folder, layout, builder, position, progressStart + done*range, range);
+
+					String brickJson = folder + "/jsonInfo.json";
+					writeTemplate("/jsonTemplate.json", brickJson, true, "./", depth, width, height, voxelSize(1, 1, 1), position.channel,
+							",\n        \"brick\": {\"x\": " + bx + ", \"y\": " + by + ", \"z\": " + bz + "},"
+							+ "\n        \"brickOrigin\": {\"x\": " + x + ", \"y\": " + y + ", \"z\": " + z + "}"
+							+ levels);
+					done++;
+				}
+			}
+		}
+		return ",\n        \"bricks\": {\"size\": " + size
+				+ ", \"grid\": {\"x\": " + bricksX + ", \"y\": " + bricksY + ", \"z\": " + bricksZ + "}"
+				+ ", \"folderFormat\": \"brick_%x_%y_%z\"}";
+	}
+
+	/** Folder holding brick (x, y, z) of a bricked dataset, relative to the dataset folder. */
+	public static String brickFolder(int x, int y, int z) {
+		return "brick_" + x + "_" + y + "_" + z;
+	}
+
+	/** Layout for an atlas set of the given size, in the chosen atlas format. */
+	private AtlasLayout newLayout(int width, int height, int depth) {
+		AtlasFormat format = AtlasFormat.forName(settings.atlasFormat);
+		return new AtlasLayout(width, height, format.positions(depth), numberOfAtlases,
+				AtlasPacking.forName(settings.atlasPacking));
+	}
+
+	private AtlasBuilder newBuilder(AtlasLayout layout, int depth, Position position) {
+		AtlasBuilder builder = new AtlasBuilder(imp, layout, position.threads);
+		builder.setChannelFrame(position.channel, position.frame);
+		builder.setFormat(AtlasFormat.forName(settings.atlasFormat), depth);
+		builder.setFilter(ResamplingFilter.forName(settings.resampling));
+		double[] range = intensityRanges.get(position.channel);
+		if (range != null) builder.setIntensityRange(range[0], range[1]);
+		if (settings.autoCrop) builder.setCrop(crop);
+		builder.setPrefetch(settings.prefetch);
+		builder.setTimings(timings);
+		return builder;
+	}
+
+	private AtlasWriter newWriter(String folder) {
+		return newWriter(folder, null);
+	}
+
+	/**
+	 * A writer for the atlases in folder. When exporting straight to the
+	 * upload, the encoded atlases are uploaded instead, and also kept in
+	 * captured (by path) if that isn't null.
+	 */
+	private AtlasWriter newWriter(String folder, final Map<String, byte[]> captured) {
+		AtlasWriter writer = new AtlasWriter(folder, settings.uniqueName, PngEncoder.forPreset(settings.pngCompression),
+				AtlasFormat.forName(settings.atlasFormat).colourType);
+		writer.setTimings(timings);
+		if (uploader != null) {
+			writer.setDestination(new AtlasWriter.Destination() {
+				public void write(String path, byte[] png) throws IOException {
+					if (captured != null) captured.put(path, png);
+					uploader.put(keyOf(path), png);
+				}
+			});
+		}
+		return writer;
+	}
+
+	/** Create a folder of the dataset, unless exporting straight to the upload. */
+	private void makeFolder(String folder) {
+		if (uploader == null) new File(folder).mkdir();
+		folders.add(folder);
+	}
+
+	/** Upload key of a file in the dataset folder. */
+	private String keyOf(String path) {
+		return keyPrefix + "/" + path.substring(savepath.length() + 1);
+	}
+
+	/**
+	 * Build the atlases and save them as PNGs in folder. Bricks are always
+	 * streamed; a single atlas set only if streaming was asked for. If more
+	 * than one resolution level was asked for, the lower levels are computed
+	 * from the atlases as they are completed and written to level_N
+	 * sub-folders. Returns the json fields listing the levels, if any.
+	 *
+	 * When exporting straight to the upload, atlases are always streamed, so
+	 * each is uploaded while the next one is built.
+	 */
+	private String writeAtlasSet(String folder, AtlasLayout layout, AtlasBuilder builder, Position position,
+			double progressStart, double progressRange) throws IOException {
+		checkCancelled();
+		String key = null;
+		Map<String, String> cacheFiles = null;
+		if (cache != null) {
+			IJ.showStatus("Looking for cached FP atlases");
+			key = cacheKey(builder, position);
+			cacheFiles = cacheFiles(folder);
+			if (restoreFromCache(key, cacheFiles)) {
+				IJ.showProgress(progressStart + progressRange);
+				return addAtlasSet(folder, layout, position.channel);
+			}
+		}
+
+		// Atlases that are never written locally are kept for the cache as they pass
+		Map<String, byte[]> captured = uploader != null && key != null ? new ConcurrentHashMap<String, byte[]>() : null;
+		final AtlasWriter atlasWriter = newWriter(folder, captured);
+		final AtlasDownsampler downsampler = settings.levels > 1 ? new AtlasDownsampler(layout) : null;
+		if (settings.streaming || settings.brickSize > 0 || uploader != null) {
+			// Each atlas is written as soon as it is filled
+			builder.setProgressRange(progressStart, progressRange);
+			builder.stream(downsampler == null ? atlasWriter : new AtlasSink() {
+				public void atlasComplete(int atlasNumber, BufferedImage atlas) throws IOException {
+					atlasWriter.atlasComplete(atlasNumber, atlas);
+					downsampler.atlasComplete(atlasNumber, atlas);
+				}
+			});
+		} else {
+			builder.setProgressRange(progressStart, progressRange*0.6);
+			BufferedImage[] atlasArray = builder.build();
+			IJ.showProgress(progressStart + progressRange*0.6);
+
+			IJ.showStatus("Saving FP atlases");
+			atlasWriter.writeAll(atlasArray, position.threads, progressStart + progressRange*0.6, progressRange*0.4);
+			if (downsampler != null) {
+				for (int i=0; i<atlasArray.length; i++) downsampler.atlasComplete(i, atlasArray[i]);
+			}
+		}
+		if (downsampler != null) {
+			writeLevels(folder, downsampler, position.threads, captured);
+		}
+		if (captured != null) {
+			Map<String, byte[]> entry = new LinkedHashMap<String, byte[]>();
+			for (Map.Entry<String, String> file : cacheFiles.entrySet()) {
+				entry.put(file.getKey(), captured.get(file.getValue()));
+			}
+			cache.write(key, entry);
+		} else if (key != null) {
+			cache.store(key, cacheFiles);
+		}
+		return addAtlasSet(folder, layout, position.channel);
+	}
+
+	/** Copy a cached atlas set into folder, or upload it when exporting straight to the upload. */
+	private boolean restoreFromCache(String key, Map<String, String> cacheFiles) throws IOException {
+		if (uploader == null) {
+			return cache.restore(key, cacheFiles);
+		}
+		Map<String, byte[]> cached = cache.read(key, cacheFiles.keySet());
+		if (cached == null) return false;
+		for (Map.Entry<String, String> file : cacheFiles.entrySet()) {
+			uploader.put(keyOf(file.getValue()), cached.get(file.getKey()));
+		}
+		return true;
+	}
+
+	/**
+	 * Write the atlases of levels 1 to levels-1 of the pyramid, each computed
+	 * from the level above.
+	 */
+	private void writeLevels(String folder, AtlasDownsampler downsampler, int threads,
+			Map<String, byte[]> captured) throws IOException {
+		for (int level=1; level<settings.levels; level++) {
+			IJ.showStatus("Saving FP atlases for level " + level);
+			BufferedImage[] atlasArray = downsampler.getAtlases();
+			String levelFolder = folder + "/" + levelFolder(level);
+			if (uploader == null) new File(levelFolder).mkdir();
+			newWriter(levelFolder, captured).writeAll(atlasArray, threads, 0.75, 0.0);
+
+			if (level+1 < settings.levels) {
+				AtlasLayout layout = downsampler.getLayout();
+				downsampler = new AtlasDownsampler(layout);
+				for (int i=0; i<atlasArray.length; i++) downsampler.atlasComplete(i, atlasArray[i]);
+			}
+		}
+	}
+
+	/**
+	 * Add the atlases of a written atlas set and its levels to the dataset,
+	 * and write each level's jsonInfo.json. Returns the json fields listing
+	 * all levels, full resolution first, or nothing for a single level.
+	 */
+	private String addAtlasSet(String folder, AtlasLayout full, int channel) throws IOException {
+		addAtlases(newWriter(folder));
+		countPixels(full);
+		if (settings.levels == 1) return full.jsonFields();
+
+		StringBuilder levels = new StringBuilder(",\n        \"levels\": [");
+		levels.append(levelJson(0, "./", full, full));
+		AtlasLayout layout = full;
+		for (int level=1; level<settings.levels; level++) {
+			layout = AtlasDownsampler.halve(layout);
+			countPixels(layout);
+			String levelFolder = folder + "/" + levelFolder(level);
+			folders.add(levelFolder);
+			addAtlases(newWriter(levelFolder));
+
+			String levelJson = levelFolder + "/jsonInfo.json";
+			writeTemplate("/jsonTemplate.json", levelJson, true, "./", layout.numberOfImages, layout.sliceWidth, layout.sliceHeight,
+					levelVoxelSize(full, layout), channel, ",\n        \"level\": " + level + layout.jsonFields());
+			levels.append(",").append(levelJson(level, levelFolder(level) + "/", full, layout));
+		}
+		return full.jsonFields() + levels.append("\n        ]").toString();
+	}
+
+	private void countPixels(AtlasLayout layout) {
+		slicePixels.addAndGet((long)layout.numberOfImages*layout.sliceWidth*layout.sliceHeight);
+		atlasPixels.addAndGet((long)layout.numberOfAtlases*layout.atlasWidth*layout.atlasHeight);
+	}
+
+	/** Fraction of the pixels of all atlases written so far that no slice covers. */
+	public double wastedFraction() {
+		long total = atlasPixels.get();
+		return total > 0 ? 1.0 - (double)slicePixels.get()/total : 0.0;
+	}
+
+	/**
+	 * Cache key of an atlas set: the source pixels of its channel and
+	 * timepoint, how they are rendered and everything that changes the PNG
+	 * files, but not the unique name or voxel sizes.
+	 */
+	private String cacheKey(AtlasBuilder builder, Position position) {
+		return DigestUtils.md5Hex(volumeHash(position.channel, position.frame)
+				+ "\n" + builder.renderingKey()
+				+ "\n" + settings.pngCompression + " levels=" + settings.levels);
+	}
+
+	/**
+	 * The atlases of an atlas set and its levels, by their name in the cache
+	 * (without the unique name) and their path in folder.
+	 */
+	private Map<String, String> cacheFiles(String folder) {
+		Map<String, String> files = new LinkedHashMap<String, String>();
+		for (int level=0; level<settings.levels; level++) {
+			String prefix = level == 0 ? "" : levelFolder(level) + "/";
+			AtlasWriter writer = newWriter(level == 0 ? folder : folder + "/" + levelFolder(level));
+			for (int i=0; i<numberOfAtlases; i++) {
+				files.put(prefix + String.format("z%04d.png", i), writer.atlasPath(i));
+			}
+		}
+		return files;
+	}
+
+	private String levelJson(int level, String path, AtlasLayout full, AtlasLayout layout) {
+		double[] voxelSize = levelVoxelSize(full, layout);
+		return "\n                {\"level\": " + level + ", \"pathToImages\": \"" + path + "\""
+				+ ", \"numberOfImages\": " + layout.numberOfImages
+				+ ", \"sliceWidth\": " + layout.sliceWidth + ", \"sliceHeight\": " + layout.sliceHeight
+				+ ", \"voxelSize\": {\"x\": " + voxelSize[0] + ", \"y\": " + voxelSize[1] + ", \"z\": " + voxelSize[2] + "}}";
+	}
+
+	/** Folder holding level n of the resolution pyramid, relative to its atlas set. */
+	public static String levelFolder(int level) {
+		return "level_" + level;
+	}
+
+	private void addAtlases(AtlasWriter atlasWriter) {
+		if (uploader != null) return;
+		for (int i=0; i<numberOfAtlases; i++){
+			datasetFiles.add(atlasWriter.atlasPath(i));
+			uploadFiles.add(atlasWriter.atlasPath(i));
+		}
+	}
+
+	private double[] levelVoxelSize(AtlasLayout full, AtlasLayout layout) {
+		return voxelSize((double)full.sliceWidth/layout.sliceWidth, (double)full.sliceHeight/layout.sliceHeight,
+				(double)full.numberOfImages/layout.numberOfImages);
+	}
+
+	/** Voxel size of the resized volume, times the given factors. */
+	private double[] voxelSize(double factorX, double factorY, double factorZ) {
+		double scaleX = (double)resX / (double)crop.width;
+		double scaleY = (double)resY / (double)crop.height;
+		return new double[] {settings.voxelSizeX/scaleX*factorX, settings.voxelSizeY/scaleY*factorY, settings.voxelSizeZ*factorZ};
+	}
+
+	/**
+	 * Fill in a template for an atlas set of the given size and channel, and
+	 * write it to saveme, adding it to the files to upload if upload is set. When
+	 * exporting straight to the upload it is only uploaded, if at all.
+	 * Package-private for the template benchmark.
+	 */
+	void writeTemplate(String template, String saveme, boolean upload, String pathToImages,
+			int numberOfImages, int sliceWidth, int sliceHeight, double[] voxelSize, int channel, String extraFields) throws IOException {
+		String uniqueName = settings.uniqueName;
+		AtlasFormat format = AtlasFormat.forName(settings.atlasFormat);
+		double[] viewer = viewerDefaults.get(channel);
+		if (viewer == null) viewer = new double[] {IntensityHistogram.DEFAULT_INTENSITY, IntensityHistogram.DEFAULT_THRESHOLD};
+
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("Title", uniqueName + " - FPBioimage Viewer");
+		fields.put("PathToImages", pathToImages);
+		fields.put("UniqueName", uniqueName);
+		fields.put("NumberOfImages", Integer.toString(numberOfImages));
+		fields.put("ImagePrefix", uniqueName + "_z");
+		fields.put("NumberingFormat", "0000");
+		fields.put("VoxelX", Double.toString(voxelSize[0]));
+		fields.put("VoxelY", Double.toString(voxelSize[1]));
+		fields.put("VoxelZ", Double.toString(voxelSize[2]));
+		fields.put("SliceWidth", Integer.toString(sliceWidth));
+		fields.put("SliceHeight", Integer.toString(sliceHeight));
+		fields.put("ImageAlpha", Boolean.toString(format == AtlasFormat.PACKED));
+		fields.put("AtlasFormat", format.jsonName);
+		fields.put("SlicesPerPixel", Integer.toString(format.slicesPerPixel));
+		fields.put("Intensity", Double.toString(viewer[0]));
+		fields.put("Threshold", Double.toString(viewer[1]));
+		fields.put("ExtraFields", extraFields);
+
+		// Finally, write the filled in template to the save location
+		if (uploader == null) {
+			Template.forResource(template).render(fields, saveme);
+			datasetFiles.add(saveme);
+			if (upload) uploadFiles.add(saveme);
+		} else if (upload) {
+			uploader.put(keyOf(saveme), Template.forResource(template).render(fields));
+		}
+	}
+
+	/**
+	 * Upload the atlases and index.html under keyPrefix, keeping the layout of
+	 * the dataset folder. Progress runs from 0.8 to 1.0 of the ImageJ
+	 * progress bar. S3 buckets get the batched and multipart uploads of
+	 * {@link AtlasUploader}; other backends are sent one file at a time.
+	 */
+	public void upload(StorageBackend storage, String keyPrefix) throws IOException {
+		checkCancelled();
+		this.storage = storage;
+		IJ.showStatus("Uploading to " + storage.getName());
+
+		// Set up list of all files to upload
+		String[] filelist = uploadFiles.toArray(new String[uploadFiles.size()]);
+		String[] keylist = new String[filelist.length];
+		for (int i=0; i<filelist.length; i++){
+			keylist[i] = keyPrefix + "/" + manifest.relativeName(filelist[i]);
+		}
+
+		if (storage instanceof S3Backend) {
+			S3Backend s3 = (S3Backend) storage;
+			uploadToS3(new AtlasUploader(s3.getS3Service(), s3.getBucketName(), settings.numThreads), filelist, keylist);
+		} else {
+			uploadFiles(storage, filelist, keylist);
+		}
+
+		timings.log(settings.uniqueName, ExportTimings.Stage.UPLOAD);
+		timings.write(timingsSavePath);
+	}
+
+	private void uploadToS3(AtlasUploader uploader, String[] filelist, String[] keylist) throws IOException {
+		uploader.setProgressRange(0.8, 0.2);
+		uploader.setManifest(manifest);
+		uploader.setTimings(timings);
+		activeUploader = uploader;
+		try {
+			// A cancel() that came in just before the uploader was set still counts
+			if (cancelled) uploader.cancel();
+			uploader.upload(filelist, keylist);
+		} finally {
+			activeUploader = null;
+			uploadedKeys.addAll(uploader.getUploadedKeys());
+		}
+	}
+
+	private void uploadFiles(StorageBackend storage, String[] filelist, String[] keylist) throws IOException {
+		PipelinedUploader uploader = new PipelinedUploader(storage, settings.numThreads);
+		uploader.setTimings(timings);
+		try {
+			for (int i=0; i<filelist.length; i++) {
+				checkCancelled();
+				uploader.put(keylist[i], Files.readAllBytes(Paths.get(filelist[i])));
+				IJ.showProgress(0.8 + 0.2*(i+1)/filelist.length);
+			}
+			uploader.finish();
+		} finally {
+			uploader.close();
+			uploadedKeys.addAll(uploader.getUploadedKeys());
+		}
+	}
+
+	/**
+	 * Stop the export or upload running on another thread. It ends with an
+	 * InterruptedIOException at the next atlas set, brick or batch of
+	 * uploads; interrupt the exporting thread as well to stop sooner.
+	 */
+	public void cancel() {
+		cancelled = true;
+		AtlasUploader uploader = activeUploader;
+		if (uploader != null) uploader.cancel();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	private void checkCancelled() throws InterruptedIOException {
+		if (cancelled || Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Export of " + settings.uniqueName + " was cancelled");
+		}
+	}
+
+	/**
+	 * Remove the results of an export that didn't finish: the objects
+	 * uploaded so far and, unless the dataset was completely saved to be
+	 * kept, the files written to the dataset folder. Only files the exporter
+	 * writes are deleted, and folders only once they are empty.
+	 */
+	public void cleanUp() {
+		if (storage != null) {
+			List<String> keys;
+			synchronized (uploadedKeys) {
+				keys = new ArrayList<String>(uploadedKeys);
+			}
+			for (String key : keys) {
+				try {
+					storage.delete(key);
+				} catch (IOException e) {
+					IJ.log("FPBioimage: could not delete uploaded " + key + ": " + e.getMessage());
+				}
+			}
+			uploadedKeys.clear();
+		}
+		if (savepath != null && (!complete || !settings.doSave)) {
+			deleteDatasetFiles(new File(savepath));
+		}
+	}
+
+	private void deleteDatasetFiles(File folder) {
+		File[] children = folder.listFiles();
+		if (children == null) return;
+		for (File child : children) {
+			if (child.isDirectory()) {
+				deleteDatasetFiles(child);
+			} else if (isDatasetFile(child.getName())) {
+				child.delete();
+			}
+		}
+		// Fails, and keeps the folder, if anything else is in it
+		folder.delete();
+	}
+
+	private boolean isDatasetFile(String name) {
+		return (name.startsWith(settings.uniqueName + "_z") && name.endsWith(".png"))
+				|| name.equals("index.html") || name.equals("jsonInfo.json")
+				|| name.equals(UploadManifest.FILE_NAME) || name.equals(ExportTimings.FILE_NAME);
+	}
+
+	/**
+	 * Slices the export resamples: each z-slice of each channel and
+	 * timepoint, once per brick column. Progress can be measured against
+	 * the resampled slices in {@link #getTimings}.
+	 */
+	public long expectedSlices() {
+		long slices = (long)imp.getNChannels()*imp.getNFrames()*(crop != null ? crop.depth : imp.getNSlices());
+		if (settings.brickSize > 0) {
+			int size = settings.brickSize;
+			int width = crop != null ? resX : settings.resX, height = crop != null ? resY : settings.resY;
+			slices *= (long)((width + size - 1) / size)*((height + size - 1) / size);
+		}
+		return slices;
+	}
+
+	/** Schedule the dataset folder for deletion when Fiji exits. */
+	public void deleteOnExit() {
+		// Files are deleted in reverse order of registration, so the folders go last
+		for (String folder : folders) {
+			new File(folder).deleteOnExit();
+		}
+		for (String file : datasetFiles) {
+			new File(file).deleteOnExit();
+		}
+	}
+
+	public String getSavePath() {
+		return savepath;
+	}
+
+	public String getHtmlPath() {
+		return htmlSavePath;
+	}
+
+	public String getJsonPath() {
+		return jsonSavePath;
+	}
+
+	public ExportTimings getTimings() {
+		return timings;
+	}
+
+}
@@ -0,0 +1,48 @@
+package fpbioimage_helper;
+
+/**
+ * How voxels are stored in the atlas PNGs.
+ *
+ * RGB is the original format: one slice per atlas position, rendered with
+ * the image's LUT. Luminance stores the 8-bit grey value only, a third of
+ * the bytes of RGB. Packed stores four consecutive slices in the red, green,
+ * blue and alpha channels of one atlas position, so the atlases hold a
+ * quarter as many positions.
+ */
+public enum AtlasFormat {
+
+	RGB("RGB", "rgb", 1, PngEncoder.ColourType.RGB),
+	LUMINANCE("Luminance", "luminance", 1, PngEncoder.ColourType.GREY),
+	PACKED("Packed", "packed", 4, PngEncoder.ColourType.RGBA);
+
+	/** Names offered in the dialog, in declaration order. */
+	public static final String[] NAMES = {RGB.label, LUMINANCE.label, PACKED.label};
+
+	/** Bit shift of the channel holding slice c of a packed position: red, green, blue, alpha. */
+	static final int[] PACKED_SHIFT = {16, 8, 0, 24};
+
+	public final String label;
+	public final String jsonName;
+	public final int slicesPerPixel;
+	public final PngEncoder.ColourType colourType;
+
+	AtlasFormat(String label, String jsonName, int slicesPerPixel, PngEncoder.ColourType colourType) {
+		this.label = label;
+		this.jsonName = jsonName;
+		this.slicesPerPixel = slicesPerPixel;
+		this.colourType = colourType;
+	}
+
+	/** Number of atlas positions needed for the given number of slices. */
+	public int positions(int numberOfSlices) {
+		return (numberOfSlices + slicesPerPixel - 1) / slicesPerPixel;
+	}
+
+	public static AtlasFormat forName(String name) {
+		for (AtlasFormat format : values()) {
+			if (format.label.equalsIgnoreCase(name)) return format;
+		}
+		throw new IllegalArgumentException("Unknown atlas format: " + name);
+	}
+
+}
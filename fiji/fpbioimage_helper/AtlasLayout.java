@@ -0,0 +1,165 @@
+package fpbioimage_helper;
+
+import java.util.Locale;
+
+/**
+ * Describes where each z-slice of a stack is placed in the set of texture
+ * atlases read by the FPBioimage viewer.
+ *
+ * Slices are dealt round-robin over the atlases (slice 0 to atlas 0, slice 1
+ * to atlas 1, ...), and within an atlas they are laid out left to right,
+ * filling rows from the bottom of the image upwards.
+ *
+ * With {@link AtlasPacking#TIGHT} the cells are the size of the slices
+ * and the atlas size isn't rounded to a power of two; see {@link #jsonFields}
+ * for how the layout is passed on to the viewer.
+ */
+public class AtlasLayout {
+
+	public final int sliceWidth;
+	public final int sliceHeight;
+	public final int numberOfImages;
+	public final int numberOfAtlases;
+	public final AtlasPacking packing;
+
+	public final int zPadding;
+	public final int paddedSliceWidth;
+	public final int paddedSliceHeight;
+	public final int xOffset;
+	public final int yOffset;
+
+	public final int slicesPerAtlas;
+	public final int slicesPerRow;
+	public final int atlasWidth;
+	public final int atlasHeight;
+
+	public AtlasLayout(int sliceWidth, int sliceHeight, int numberOfImages, int numberOfAtlases) {
+		this(sliceWidth, sliceHeight, numberOfImages, numberOfAtlases, AtlasPacking.POWER_OF_TWO);
+	}
+
+	public AtlasLayout(int sliceWidth, int sliceHeight, int numberOfImages, int numberOfAtlases, AtlasPacking packing) {
+		this.sliceWidth = sliceWidth;
+		this.sliceHeight = sliceHeight;
+		this.numberOfImages = numberOfImages;
+		this.numberOfAtlases = numberOfAtlases;
+		this.packing = packing;
+
+		zPadding = 0;
+		int paddedSliceDepth = numberOfImages + zPadding;
+		slicesPerAtlas = (int)Math.ceil((float)paddedSliceDepth/(float)numberOfAtlases);
+
+		int cellWidth = ceil2(sliceWidth);
+		int cellHeight = ceil2(sliceHeight);
+		int width = ceil2(cellWidth);
+		int height = ceil2(cellHeight * slicesPerAtlas);
+		while((height > 2*width) && (height > sliceHeight)) {
+			height /= 2;
+			width *= 2;
+		}
+
+		if (packing == AtlasPacking.TIGHT) {
+			paddedSliceWidth = sliceWidth;
+			paddedSliceHeight = sliceHeight;
+			slicesPerRow = tightColumns(Math.max(width, height));
+			atlasWidth = slicesPerRow*sliceWidth;
+			atlasHeight = Math.max(1, (slicesPerAtlas + slicesPerRow - 1)/slicesPerRow)*sliceHeight;
+		} else {
+			paddedSliceWidth = cellWidth;
+			paddedSliceHeight = cellHeight;
+			atlasWidth = width;
+			atlasHeight = height;
+			slicesPerRow = (int)Math.floor((float)atlasWidth/(float)paddedSliceWidth);
+		}
+
+		xOffset = (int)Math.floor((paddedSliceWidth - sliceWidth)/2);
+		yOffset = (int)Math.floor((paddedSliceHeight - sliceHeight)/2);
+	}
+
+	/**
+	 * Slices per row of a tight atlas: the fewest atlas pixels with neither
+	 * side longer than limit, ties going to the squarer atlas. If nothing
+	 * fits, the atlas with the shortest longest side.
+	 */
+	private int tightColumns(int limit) {
+		int slices = Math.max(1, slicesPerAtlas);
+		int best = 0;
+		long bestArea = Long.MAX_VALUE;
+		int bestSide = Integer.MAX_VALUE;
+		for (int columns=1; columns<=slices; columns++) {
+			int w = columns*sliceWidth;
+			int h = (slices + columns - 1)/columns*sliceHeight;
+			int side = Math.max(w, h);
+			long area = (long)w*h;
+			if (side <= limit && (area < bestArea || (area == bestArea && side < bestSide))) {
+				best = columns;
+				bestArea = area;
+				bestSide = side;
+			}
+		}
+		if (best > 0) return best;
+		for (int columns=1; columns<=slices; columns++) {
+			int side = Math.max(columns*sliceWidth, (slices + columns - 1)/columns*sliceHeight);
+			if (side < bestSide) {
+				best = columns;
+				bestSide = side;
+			}
+		}
+		return best;
+	}
+
+	/** Fraction of the atlas pixels that no slice covers. */
+	public double wastedFraction() {
+		long used = (long)numberOfImages*sliceWidth*sliceHeight;
+		long total = (long)numberOfAtlases*atlasWidth*atlasHeight;
+		return total > 0 ? 1.0 - (double)used/total : 0.0;
+	}
+
+	/**
+	 * Json fields describing the layout, so the viewer needn't work it out
+	 * from the slice size: the packing, the atlas size, and the cells (slices
+	 * per row, cell size and the offset of the slice within its cell). Rows
+	 * are counted from the bottom of the atlas.
+	 */
+	public String jsonFields() {
+		return ",\n        \"atlasLayout\": {\"packing\": \"" + packing.jsonName + "\""
+				+ ", \"atlasWidth\": " + atlasWidth + ", \"atlasHeight\": " + atlasHeight
+				+ ", \"slicesPerRow\": " + slicesPerRow
+				+ ", \"cellWidth\": " + paddedSliceWidth + ", \"cellHeight\": " + paddedSliceHeight
+				+ ", \"xOffset\": " + xOffset + ", \"yOffset\": " + yOffset
+				+ ", \"wastedFraction\": " + String.format(Locale.ROOT, "%.4f", wastedFraction()) + "}";
+	}
+
+	/** Index of the atlas that holds slice i (zero based). */
+	public int atlasNumber(int i) {
+		int j = i + (int)Math.floor((float)zPadding/2.0);
+		return (int)((float)j % (float)numberOfAtlases);
+	}
+
+	/** Position of slice i within its atlas. */
+	public int locationIndex(int i) {
+		int j = i + (int)Math.floor((float)zPadding/2.0);
+		return (int)Math.floor((float)j/(float)numberOfAtlases);
+	}
+
+	/** Left-most atlas column written by slice i. */
+	public int xStartPixel(int i) {
+		int locationIndex = locationIndex(i);
+		return (int)((float)locationIndex % (float)slicesPerRow) * paddedSliceWidth + xOffset;
+	}
+
+	/** Top-most atlas row written by slice i. */
+	public int yStartPixel(int i) {
+		int locationIndex = locationIndex(i);
+		int yStartPixel = (int)Math.floor((float)locationIndex / (float)slicesPerRow) * paddedSliceHeight;
+		return atlasHeight - yStartPixel - paddedSliceHeight + yOffset;
+	}
+
+	public static int ceil2(int x){
+		// Round an int up to the next power of 2
+		double log = Math.log(x) / Math.log(2);
+		double roundLog = Math.ceil(log);
+		int powerOfTwo = (int)Math.pow(2, roundLog);
+		return powerOfTwo;
+	}
+
+}
@@ -0,0 +1,39 @@
+package fpbioimage_helper;
+
+/**
+ * How slices are arranged in the atlases.
+ *
+ * Power of two is the original layout: every slice is centred in a cell
+ * rounded up to a power of two, and the atlas is rounded up again, so a
+ * 260x260 slice takes a 512x512 cell and most of the atlas can be padding.
+ * Tight packs the slices edge to edge and picks the number of columns that
+ * gives the smallest atlas, never larger along either side than the power
+ * of two atlas. The layout is written to jsonInfo.json for the viewer.
+ */
+public enum AtlasPacking {
+
+	POWER_OF_TWO("Power of two", "pow2"),
+	TIGHT("Tight", "tight");
+
+	/** Names offered in the dialog, in declaration order. */
+	public static final String[] NAMES = {POWER_OF_TWO.label, TIGHT.label};
+
+	public final String label;
+	public final String jsonName;
+
+	AtlasPacking(String label, String jsonName) {
+		this.label = label;
+		this.jsonName = jsonName;
+	}
+
+	public static AtlasPacking forName(String name) {
+		for (AtlasPacking packing : values()) {
+			if (packing.label.equalsIgnoreCase(name) || packing.jsonName.equalsIgnoreCase(name)
+					|| packing.name().equalsIgnoreCase(name)) {
+				return packing;
+			}
+		}
+		throw new IllegalArgumentException("Unknown atlas packing: " + name);
+	}
+
+}
@@ -0,0 +1,16 @@
+package fpbioimage_helper;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Receives atlases from {@link AtlasBuilder} as soon as they are complete.
+ *
+ * When streaming, the builder recycles the atlas image once this method
+ * returns, so implementations must not keep a reference to it.
+ */
+public interface AtlasSink {
+
+	void atlasComplete(int atlasNumber, BufferedImage atlas) throws IOException;
+
+}
@@ -0,0 +1,339 @@
+package fpbioimage_helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.multi.ErrorPermitter;
+import org.jets3t.service.multi.StorageServiceEventAdaptor;
+import org.jets3t.service.multi.event.CreateObjectsEvent;
+import org.jets3t.service.multi.event.GetObjectHeadsEvent;
+import org.jets3t.service.multi.event.ServiceEvent;
+import org.jets3t.service.multi.s3.S3ServiceEventAdaptor;
+import org.jets3t.service.multi.s3.ThreadedS3Service;
+import org.jets3t.service.utils.MultipartUtils;
+
+import ij.IJ;
+
+/**
+ * Uploads a set of files to the FPB host bucket concurrently.
+ *
+ * Small files are sent together through jets3t's ThreadedS3Service. Files
+ * larger than the part size are sent as S3 multipart uploads, with the parts
+ * uploaded in parallel. Any file that fails is retried on its own, with an
+ * exponential backoff between attempts.
+ *
+ * If an {@link UploadManifest} is given, the existing objects are checked
+ * with HEAD requests first and files whose MD5 matches are skipped.
+ *
+ * {@link #cancel} stops an upload from another thread; the keys uploaded
+ * until then are in {@link #getUploadedKeys}.
+ */
+public class AtlasUploader {
+
+	/** Files above this size are sent as multipart uploads. */
+	public static final long PART_SIZE = 8L*1024*1024;
+
+	private final S3Service s3Service;
+	private final String bucketName;
+	private final int numThreads;
+	// Client the threaded services and multipart uploads run on, with their thread count
+	private S3Service threadedService;
+
+	private int maxAttempts = 4;
+	private long initialBackoffMillis = 500;
+
+	private UploadManifest manifest;
+	private ExportTimings timings = new ExportTimings();
+
+	private double progressStart = 0.0;
+	private double progressRange = 1.0;
+
+	private volatile boolean cancelled;
+	private final Set<String> uploadedKeys = Collections.synchronizedSet(new HashSet<String>());
+
+	public AtlasUploader(S3Service s3Service, String bucketName, int numThreads) {
+		this.s3Service = s3Service;
+		this.bucketName = bucketName;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	public void setRetries(int maxAttempts, long initialBackoffMillis) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.initialBackoffMillis = initialBackoffMillis;
+	}
+
+	/** Skip files whose hash in the manifest matches the object already uploaded. */
+	public void setManifest(UploadManifest manifest) {
+		this.manifest = manifest;
+	}
+
+	/** Record time spent uploading in timings. */
+	public void setTimings(ExportTimings timings) {
+		this.timings = timings;
+	}
+
+	/** Report progress as the fraction [start, start+range] of the ImageJ progress bar. */
+	public void setProgressRange(double start, double range) {
+		progressStart = start;
+		progressRange = range;
+	}
+
+	/**
+	 * Upload files[i] to keys[i] with a public-read ACL.
+	 *
+	 * @throws IOException if some files could still not be uploaded after all retries
+	 */
+	public void upload(String[] files, String[] keys) throws IOException {
+		configureThreads();
+
+		final Set<String> uploaded = Collections.synchronizedSet(new HashSet<String>());
+		if (manifest != null) {
+			uploaded.addAll(unchangedKeys(files, keys));
+			if (!uploaded.isEmpty()) {
+				IJ.log("FPBioimage: " + uploaded.size() + " of " + files.length + " files unchanged, not uploading them again");
+			}
+		}
+		List<Integer> pending = new ArrayList<Integer>();
+		for (int i=0; i<files.length; i++) {
+			if (!uploaded.contains(keys[i])) pending.add(i);
+		}
+		Throwable lastError = null;
+
+		for (int attempt=0; attempt<maxAttempts && !pending.isEmpty(); attempt++) {
+			checkCancelled();
+			if (attempt > 0) {
+				long wait = initialBackoffMillis << (attempt-1);
+				IJ.log("FPBioimage: retrying " + pending.size() + " upload(s) in " + wait + " ms");
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Upload was interrupted", e);
+				}
+			}
+
+			List<StorageObject> small = new ArrayList<StorageObject>();
+			List<StorageObject> large = new ArrayList<StorageObject>();
+			for (int i : pending) {
+				try {
+					S3Object object = createObject(files[i], keys[i]);
+					if (object.getContentLength() > PART_SIZE) large.add(object);
+					else small.add(object);
+				} catch (IOException | NoSuchAlgorithmException e) {
+					throw new IOException("Could not read " + files[i], e);
+				}
+			}
+
+			long start = System.nanoTime();
+			lastError = putSmallObjects(small, uploaded, files.length);
+			addTimings(start, small, uploaded);
+			checkCancelled();
+			for (StorageObject object : large) {
+				checkCancelled();
+				start = System.nanoTime();
+				Throwable error = putMultipart(object);
+				if (error == null) {
+					uploaded.add(object.getKey());
+					uploadedKeys.add(object.getKey());
+					showProgress(uploaded.size(), files.length);
+					addTimings(start, Collections.singletonList(object), uploaded);
+				} else {
+					lastError = error;
+				}
+			}
+
+			List<Integer> failed = new ArrayList<Integer>();
+			for (int i : pending) {
+				if (!uploaded.contains(keys[i])) failed.add(i);
+			}
+			pending = failed;
+		}
+
+		if (!pending.isEmpty()) {
+			StringBuilder names = new StringBuilder();
+			for (int i : pending) names.append(' ').append(keys[i]);
+			throw new IOException("Upload failed after " + maxAttempts + " attempts:" + names, lastError);
+		}
+	}
+
+	/** Record the objects of a batch that made it, with the time since start. */
+	private void addTimings(long start, List<StorageObject> objects, Set<String> uploaded) {
+		long bytes = 0;
+		int count = 0;
+		for (StorageObject object : objects) {
+			if (!uploaded.contains(object.getKey())) continue;
+			bytes += object.getContentLength();
+			count++;
+		}
+		if (count > 0) timings.add(ExportTimings.Stage.UPLOAD, start, bytes, count);
+	}
+
+	/** Keys whose remote object already has the content listed in the manifest. */
+	private Set<String> unchangedKeys(String[] files, String[] keys) {
+		final Map<String, String> md5ByKey = new HashMap<String, String>();
+		for (int i=0; i<files.length; i++) {
+			String md5 = manifest.md5OfFile(files[i]);
+			if (md5 != null) md5ByKey.put(keys[i], md5);
+		}
+		final Set<String> unchanged = Collections.synchronizedSet(new HashSet<String>());
+		if (md5ByKey.isEmpty()) return unchanged;
+
+		try {
+			ThreadedS3Service threaded = new ThreadedS3Service(threadedService, new StorageServiceEventAdaptor() {
+				@Override
+				public void event(GetObjectHeadsEvent event) {
+					if (event.getEventCode() != ServiceEvent.EVENT_IN_PROGRESS) return;
+					for (StorageObject head : event.getCompletedObjects()) {
+						String expected = md5ByKey.get(head.getKey());
+						if (expected != null && expected.equals(remoteMd5(head))) {
+							unchanged.add(head.getKey());
+						}
+					}
+				}
+			});
+			// Objects that don't exist yet just come back as (permitted) errors
+			threaded.getObjectsHeads(bucketName, md5ByKey.keySet().toArray(new String[md5ByKey.size()]),
+					new ErrorPermitter() {
+						@Override
+						public boolean isPermitted(ServiceException e) {
+							return true;
+						}
+					});
+		} catch (ServiceException e) {
+			IJ.log("FPBioimage: could not check existing objects, uploading everything: " + e.getMessage());
+		}
+		return unchanged;
+	}
+
+	private static String remoteMd5(StorageObject head) {
+		Object md5 = head.getMetadata(UploadManifest.MD5_METADATA);
+		if (md5 != null) return md5.toString();
+		// Single-part uploads have the MD5 as their ETag
+		String etag = head.getETag();
+		return etag == null ? null : etag.replace("\"", "");
+	}
+
+	private Throwable putSmallObjects(List<StorageObject> objects, final Set<String> uploaded, final int total) {
+		if (objects.isEmpty()) return null;
+		final Throwable[] error = new Throwable[1];
+		try {
+			ThreadedS3Service threaded = new ThreadedS3Service(threadedService, new StorageServiceEventAdaptor() {
+				@Override
+				public void event(CreateObjectsEvent event) {
+					super.event(event);
+					if (event.getEventCode() == ServiceEvent.EVENT_IN_PROGRESS) {
+						for (StorageObject created : event.getCreatedObjects()) {
+							uploaded.add(created.getKey());
+							uploadedKeys.add(created.getKey());
+						}
+						showProgress(uploaded.size(), total);
+						// Objects already being sent are finished, the rest are never started
+						if (cancelled && event.getThreadWatcher().isCancelTaskSupported()) {
+							event.getThreadWatcher().cancelTask();
+						}
+					} else if (event.getEventCode() == ServiceEvent.EVENT_ERROR) {
+						error[0] = event.getErrorCause();
+					}
+				}
+			});
+			threaded.putObjects(bucketName, objects.toArray(new StorageObject[objects.size()]));
+		} catch (ServiceException e) {
+			return e;
+		}
+		return error[0];
+	}
+
+	private Throwable putMultipart(StorageObject object) {
+		S3ServiceEventAdaptor listener = new S3ServiceEventAdaptor();
+		try {
+			new MultipartUtils(PART_SIZE).uploadObjects(bucketName, threadedService,
+					Collections.singletonList(object), listener);
+			listener.throwErrorIfPresent();
+			return null;
+		} catch (Exception e) {
+			return e;
+		}
+	}
+
+	private static S3Object createObject(String file, String key) throws IOException, NoSuchAlgorithmException {
+		S3Object object = new S3Object(new File(file));
+		object.setKey(key);
+		object.setContentType(contentType(file));
+		object.addMetadata(UploadManifest.MD5_METADATA, object.getMd5HashAsHex());
+		object.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
+		return object;
+	}
+
+	/** Content type for the files making up an FPBioimage dataset. */
+	public static String contentType(String name) {
+		String lower = name.toLowerCase();
+		if (lower.endsWith(".png")) return "image/png";
+		if (lower.endsWith(".json")) return "application/json";
+		if (lower.endsWith(".html") || lower.endsWith(".htm")) return "text/html";
+		return "application/octet-stream";
+	}
+
+	/**
+	 * Set up the client for the threaded services and multipart uploads, which
+	 * send parts through one. ThreadedS3Service reads its
+	 * thread count from its client's properties, so it gets a client with its
+	 * own copy of them, sharing the HTTP connection pool of the given one;
+	 * the given client's settings are left alone.
+	 */
+	private void configureThreads() {
+		if (!(s3Service instanceof RestS3Service)) {
+			threadedService = s3Service;
+			return;
+		}
+		RestS3Service shared = (RestS3Service) s3Service;
+		Jets3tProperties properties = new Jets3tProperties();
+		properties.loadAndReplaceProperties(shared.getJetS3tProperties(), "upload");
+		// The threaded service may not use more threads than the HTTP connection pool allows
+		int maxConnections = properties.getIntProperty("httpclient.max-connections", 20);
+		int threads = Math.min(numThreads, maxConnections);
+		properties.setProperty("threaded-service.max-thread-count", Integer.toString(threads));
+		properties.setProperty("threaded-service.admin-max-thread-count", Integer.toString(threads));
+		RestS3Service copy = new RestS3Service(shared.getProviderCredentials(),
+				shared.getInvokingApplicationDescription(), shared.getCredentialsProvider(), properties);
+		copy.setHttpClient(shared.getHttpClient());
+		copy.setRegionEndpointCache(shared.getRegionEndpointCache());
+		threadedService = copy;
+	}
+
+	private void showProgress(int done, int total) {
+		IJ.showProgress(progressStart + progressRange*((float)done/(float)total));
+	}
+
+	/** Stop the upload: no new files are started, and upload() throws an InterruptedIOException. */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/** Keys uploaded so far, not counting files skipped as unchanged. */
+	public List<String> getUploadedKeys() {
+		synchronized (uploadedKeys) {
+			return new ArrayList<String>(uploadedKeys);
+		}
+	}
+
+	private void checkCancelled() throws InterruptedIOException {
+		if (cancelled) throw new InterruptedIOException("Upload was cancelled");
+	}
+
+}
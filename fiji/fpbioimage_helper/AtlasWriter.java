@@ -0,0 +1,124 @@
+package fpbioimage_helper;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+
+/**
+ * Writes each atlas to &lt;folder&gt;/&lt;uniqueName&gt;_zNNNN.png using a
+ * {@link PngEncoder}, as RGB unless another colour type is given. Each
+ * atlas is encoded in memory and then written in one go, so encoding and
+ * disk writes can be timed separately. With a {@link Destination} the
+ * encoded atlases go there instead of the folder.
+ */
+public class AtlasWriter implements AtlasSink {
+
+	/** Takes encoded atlases instead of the local folder, e.g. to upload them straight away. */
+	public interface Destination {
+		void write(String path, byte[] png) throws IOException;
+	}
+
+	private final String folder;
+	private final String uniqueName;
+	private final PngEncoder encoder;
+	private final PngEncoder.ColourType colourType;
+	private ExportTimings timings = new ExportTimings();
+	private Destination destination;
+
+	public AtlasWriter(String folder, String uniqueName, PngEncoder encoder) {
+		this(folder, uniqueName, encoder, PngEncoder.ColourType.RGB);
+	}
+
+	public AtlasWriter(String folder, String uniqueName, PngEncoder encoder, PngEncoder.ColourType colourType) {
+		this.folder = folder;
+		this.uniqueName = uniqueName;
+		this.encoder = encoder;
+		this.colourType = colourType;
+	}
+
+	/** Record time spent encoding and writing atlases in timings. */
+	public void setTimings(ExportTimings timings) {
+		this.timings = timings;
+	}
+
+	/** Hand encoded atlases, with the path they would have had, to destination instead of writing them. */
+	public void setDestination(Destination destination) {
+		this.destination = destination;
+	}
+
+	public String atlasPath(int atlasNumber) {
+		return folder + "/" + atlasFileName(uniqueName, atlasNumber);
+	}
+
+	public static String atlasFileName(String uniqueName, int atlasNumber) {
+		return uniqueName + "_z" + String.format("%04d", atlasNumber) + ".png";
+	}
+
+	@Override
+	public void atlasComplete(int atlasNumber, BufferedImage atlas) throws IOException {
+		long start = System.nanoTime();
+		ByteArrayOutputStream png = new ByteArrayOutputStream(1 << 20);
+		encoder.encode(AtlasBuilder.pixels(atlas), atlas.getWidth(), atlas.getHeight(), colourType, png);
+		timings.add(ExportTimings.Stage.ENCODE, start, 4L*atlas.getWidth()*atlas.getHeight(), 1);
+		if (destination != null) {
+			destination.write(atlasPath(atlasNumber), png.toByteArray());
+			return;
+		}
+
+		start = System.nanoTime();
+		OutputStream out = new FileOutputStream(atlasPath(atlasNumber));
+		try {
+			png.writeTo(out);
+		} finally {
+			out.close();
+		}
+		timings.add(ExportTimings.Stage.WRITE, start, png.size(), 1);
+	}
+
+	/**
+	 * Encode and write all atlases, several at a time. Progress is reported as
+	 * the fraction [progressStart, progressStart+progressRange].
+	 */
+	public void writeAll(final BufferedImage[] atlasArray, int numThreads,
+			final double progressStart, final double progressRange) throws IOException {
+		final AtomicInteger done = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, atlasArray.length)));
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(atlasArray.length);
+			for (int i=0; i<atlasArray.length; i++) {
+				final int atlasNumber = i;
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						atlasComplete(atlasNumber, atlasArray[atlasNumber]);
+						IJ.showProgress(progressStart + progressRange*((float)done.incrementAndGet()/(float)atlasArray.length));
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : futures) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Writing atlases was interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new RuntimeException("Writing atlases failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,186 @@
+package fpbioimage_helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.plugin.FolderOpener;
+
+/**
+ * Headless exports without any dialogs, for one image or for a queue of
+ * stacks on disk.
+ *
+ * Stacks are opened, exported and closed by a fixed number of parallel jobs,
+ * so at most that many stacks are in memory at once. Problems are written to
+ * the log instead of being shown in message boxes, and an export whose
+ * upload would overwrite an existing dataset is skipped unless the
+ * "overwrite" option is given.
+ *
+ * With the "virtual" option stacks are opened as virtual stacks and read
+ * slice by slice during the export, so stacks larger than memory can be
+ * exported. A folder of slice images can be exported as one stack.
+ */
+public class BatchExporter {
+
+	private final String options;
+	private final int jobs;
+
+	/**
+	 * @param options headless options (see {@link ExportSettings#applyOptions}), applied to every stack
+	 * @param jobs number of stacks exported at the same time
+	 */
+	public BatchExporter(String options, int jobs) {
+		this.options = options;
+		this.jobs = Math.max(1, jobs);
+	}
+
+	/**
+	 * Stacks named by the "input" option: a folder (every visible file in it)
+	 * or a list of files separated by ';'. Folders in a list, or the input
+	 * folder itself if folderIsStack is set, are stacks of slice images.
+	 */
+	public static List<String> listInputs(String input, boolean folderIsStack) {
+		List<String> paths = new ArrayList<String>();
+		File folder = new File(input);
+		if (folder.isDirectory() && !folderIsStack) {
+			String[] names = folder.list();
+			Arrays.sort(names);
+			for (String name : names) {
+				File file = new File(folder, name);
+				if (file.isFile() && !name.startsWith(".")) paths.add(file.getPath());
+			}
+		} else if (folder.isDirectory()) {
+			paths.add(folder.getPath());
+		} else {
+			for (String path : input.split(";")) {
+				if (!path.trim().isEmpty()) paths.add(path.trim());
+			}
+		}
+		return paths;
+	}
+
+	/** Export every stack in the list. Returns the number of stacks that failed. */
+	public int run(List<String> paths) {
+		// Share the worker threads between the jobs running at the same time
+		ExportSettings base = new ExportSettings();
+		base.applyOptions(options);
+		final int threadsPerJob = Math.max(1, base.numThreads / Math.min(jobs, Math.max(1, paths.size())));
+		final String prefix = Macro.getValue(options, "name", null);
+		final boolean virtual = base.virtual;
+
+		ExecutorService pool = Executors.newFixedThreadPool(jobs);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(paths.size());
+		for (final String path : paths) {
+			results.add(pool.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					ImagePlus imp = openStack(path, virtual);
+					if (imp == null) {
+						IJ.log("FPBioimage: could not open " + path);
+						return false;
+					}
+					try {
+						ExportSettings settings = ExportSettings.defaults(imp);
+						settings.applyOptions(options);
+						settings.uniqueName = batchName(prefix, new File(path).getName());
+						settings.numThreads = threadsPerJob;
+						return exportOne(imp, settings);
+					} finally {
+						imp.close();
+					}
+				}
+			}));
+		}
+		pool.shutdown();
+
+		int failures = 0;
+		for (int i=0; i<results.size(); i++) {
+			try {
+				if (!results.get(i).get()) failures++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				pool.shutdownNow();
+				return results.size() - i;
+			} catch (ExecutionException e) {
+				IJ.log("FPBioimage: export of " + paths.get(i) + " failed: " + e.getCause());
+				failures++;
+			}
+		}
+		IJ.log("FPBioimage: exported " + (paths.size() - failures) + " of " + paths.size() + " stacks");
+		return failures;
+	}
+
+	/**
+	 * Open a stack file, or a folder of slices as one stack. If virtual is
+	 * set, TIFF stacks and folders are opened as virtual stacks; other files
+	 * are always read into memory. Returns null if nothing could be opened.
+	 */
+	public static ImagePlus openStack(String path, boolean virtual) {
+		if (new File(path).isDirectory()) {
+			return FolderOpener.open(path, virtual ? "virtual" : "");
+		}
+		String lower = path.toLowerCase();
+		if (virtual && (lower.endsWith(".tif") || lower.endsWith(".tiff"))) {
+			ImagePlus imp = IJ.openVirtual(path);
+			if (imp != null) return imp;
+		}
+		return IJ.openImage(path);
+	}
+
+	/** Export (and optionally upload) one image without any dialogs. Returns false on failure. */
+	public static boolean exportOne(ImagePlus imp, ExportSettings settings) {
+		String error = settings.check(imp);
+		if (error == null && !ExportSettings.isValidName(settings.uniqueName)) {
+			error = "Invalid unique name \"" + settings.uniqueName + "\"";
+		}
+		if (error != null) {
+			IJ.log("FPBioimage: " + imp.getTitle() + ": " + error);
+			return false;
+		}
+
+		AtlasExporter exporter = new AtlasExporter(imp, settings);
+		try {
+			StorageBackend storage = settings.doUpload ? Bucket.getBackend(settings.storage) : null;
+			String key = settings.uniqueName + "/index.html";
+			boolean upload = settings.doUpload;
+			if (upload && !settings.overwrite && storage.exists(key)) {
+				IJ.log("FPBioimage: " + settings.uniqueName + " already exists on " + storage.getName() + ", not uploading (use overwrite)");
+				upload = false;
+			}
+			if (!settings.doSave) {
+				// Nothing kept locally: upload straight from memory
+				if (!upload) return true;
+				exporter.exportAndUpload(storage, settings.uniqueName);
+				IJ.log("FPBioimage: " + imp.getTitle() + " uploaded as " + settings.uniqueName);
+				return true;
+			}
+			exporter.export(settings.savepath);
+			if (upload) {
+				exporter.upload(storage, settings.uniqueName);
+			}
+		} catch (IOException e) {
+			IJ.log("FPBioimage: " + imp.getTitle() + ": " + e);
+			return false;
+		}
+		IJ.log("FPBioimage: " + imp.getTitle() + " exported to " + exporter.getSavePath());
+		return true;
+	}
+
+	/** Unique name for one stack of a batch: its file name, cleaned up, after an optional prefix. */
+	static String batchName(String prefix, String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		String title = dot > 0 ? fileName.substring(0, dot) : fileName;
+		String name = (prefix == null || prefix.isEmpty()) ? title : prefix + "_" + title;
+		return ExportSettings.sanitizeName(name);
+	}
+
+}
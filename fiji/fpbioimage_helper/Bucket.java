@@ -1,22 +1,102 @@
 package fpbioimage_helper;
 
-import java.io.BufferedInputStream;
-import org.jets3t.service.ServiceException;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.security.AWSCredentials;
-import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 
+import ij.Prefs;
 
+/**
+ * Hands out the {@link StorageBackend} datasets are uploaded to.
+ *
+ * The storage location is FPB Host unless fp.persistent.storage (or the
+ * headless "storage=" option) names another one: s3://bucket for an AWS
+ * bucket, http(s)://host:port/bucket for an S3-compatible store, or a local
+ * folder. Credentials for other buckets come from fp.persistent.storage.accesskey
+ * and fp.persistent.storage.secretkey, or from the AWS_ACCESS_KEY_ID and
+ * AWS_SECRET_ACCESS_KEY environment variables; fp.persistent.storage.publicurl
+ * overrides the address uploads are viewed at. There is one backend per
+ * location, shared by all exports; it is shut down and replaced when the
+ * credentials or public address in the preferences change.
+ */
 public class Bucket {
-	
+
+	private static final Map<String, StorageBackend> backends = new HashMap<String, StorageBackend>();
+	// Preferences each backend was created with, by location
+	private static final Map<String, String> configs = new HashMap<String, String>();
+
+	/** The backend for the location in the preferences, or FPB Host. */
+	public static StorageBackend getBackend() throws IOException {
+		return getBackend(Prefs.get("fp.persistent.storage", ""));
+	}
+
+	/** The shared backend for a storage location; empty or null for FPB Host. */
+	public static synchronized StorageBackend getBackend(String location) throws IOException {
+		String key = location == null ? "" : location.trim();
+		String config = config();
+		StorageBackend backend = backends.get(key);
+		if (backend == null || !config.equals(configs.get(key))) {
+			if (backend != null) backend.shutdown();
+			backend = create(key);
+			backends.put(key, backend);
+			configs.put(key, config);
+		}
+		return backend;
+	}
+
+	/** The shared client of FPB Host, or null if it can't be set up. */
 	public static S3Service getS3Service(){
-		S3Service s3Service = null;
-		try {	
-			s3Service = new RestS3Service( (AWSCredentials) AWSCredentials.load(Fpbioimage_helper.bucketName, new BufferedInputStream(Bucket.class.getClassLoader().getResourceAsStream("org/jets3t/service/bucket.enc"))));
-		} catch (ServiceException e) {
+		try {
+			return ((S3Backend) getBackend("")).getS3Service();
+		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static StorageBackend create(String location) throws IOException {
+		String publicUrl = Prefs.get("fp.persistent.storage.publicurl", null);
+		if (location.isEmpty()) {
+			return S3Backend.fpbHost();
+		}
+		if (location.startsWith("s3://")) {
+			return new S3Backend(location.substring("s3://".length()), credentials(), publicUrl);
+		}
+		if (location.startsWith("http://") || location.startsWith("https://")) {
+			URI uri = URI.create(location);
+			String path = uri.getPath() == null ? "" : uri.getPath().replaceAll("^/+|/+$", "");
+			int slash = path.lastIndexOf('/');
+			if (path.isEmpty()) {
+				throw new IOException("No bucket in storage location " + location + ", expected http(s)://host:port/bucket");
+			}
+			URI endpoint = URI.create(uri.getScheme() + "://" + uri.getRawAuthority() + (slash < 0 ? "" : "/" + path.substring(0, slash)));
+			return new S3CompatibleBackend(endpoint, path.substring(slash + 1), credentials(), publicUrl);
+		}
+		File folder = location.startsWith("file:") ? new File(URI.create(location)) : new File(location);
+		return new LocalBackend(folder, publicUrl);
+	}
+
+	/** The preferences a backend is created from, besides its location; the secret key only as a hash. */
+	private static String config() {
+		String secretKey = Prefs.get("fp.persistent.storage.secretkey", System.getenv("AWS_SECRET_ACCESS_KEY"));
+		return Prefs.get("fp.persistent.storage.accesskey", System.getenv("AWS_ACCESS_KEY_ID"))
+				+ "\n" + (secretKey == null ? null : DigestUtils.sha256Hex(secretKey))
+				+ "\n" + Prefs.get("fp.persistent.storage.publicurl", null);
+	}
+
+	private static AWSCredentials credentials() throws IOException {
+		String accessKey = Prefs.get("fp.persistent.storage.accesskey", System.getenv("AWS_ACCESS_KEY_ID"));
+		String secretKey = Prefs.get("fp.persistent.storage.secretkey", System.getenv("AWS_SECRET_ACCESS_KEY"));
+		if (accessKey == null || secretKey == null) {
+			throw new IOException("No credentials for the storage location: set fp.persistent.storage.accesskey and secretkey");
 		}
-		return s3Service;
+		return new AWSCredentials(accessKey, secretKey);
 	}
 
-}
\ No newline at end of file
+}
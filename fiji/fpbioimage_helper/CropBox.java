@@ -0,0 +1,208 @@
+package fpbioimage_helper;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * The part of a stack that isn't empty: the bounding box, in source voxels,
+ * of every voxel above a background threshold in any channel or timepoint.
+ *
+ * The box is found in one pass over the slices, spread over several
+ * threads. Each row is scanned from both ends only until the first voxel
+ * above the threshold, so the cost is mostly the empty margins themselves.
+ * A voxel of background is kept around the box where there is one, so
+ * resampling filters see the edge of the object rather than a cut.
+ */
+public class CropBox {
+
+	/** Background voxels kept around the non-empty region. */
+	static final int MARGIN = 1;
+
+	public final int x;
+	public final int y;
+	public final int z;
+	public final int width;
+	public final int height;
+	public final int depth;
+
+	public CropBox(int x, int y, int z, int width, int height, int depth) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+	}
+
+	/** Bounds found in part of the stack; z holds the non-empty z-slices. */
+	private static class Bounds {
+		int minX = Integer.MAX_VALUE, maxX = -1;
+		int minY = Integer.MAX_VALUE, maxY = -1;
+		final boolean[] z;
+
+		Bounds(int slices) {
+			z = new boolean[slices];
+		}
+
+		void add(Bounds other) {
+			minX = Math.min(minX, other.minX);
+			maxX = Math.max(maxX, other.maxX);
+			minY = Math.min(minY, other.minY);
+			maxY = Math.max(maxY, other.maxY);
+			for (int i=0; i<z.length; i++) z[i] |= other.z[i];
+		}
+	}
+
+	/**
+	 * Find the non-empty box of imp, using up to threads threads. A voxel of
+	 * channel c (1-based) is empty if its value is at most thresholds[c-1];
+	 * for RGB images, if each of red, green and blue is. Returns null if the
+	 * whole stack is empty. Time spent is recorded in timings, if that isn't
+	 * null.
+	 */
+	public static CropBox find(ImagePlus imp, final double[] thresholds, int threads, final ExportTimings timings) {
+		final ImageStack stack = imp.getStack();
+		final int channels = imp.getNChannels();
+		final int slices = imp.getNSlices();
+		final int size = stack.getSize();
+		final int width = stack.getWidth(), height = stack.getHeight();
+		final AtomicInteger next = new AtomicInteger();
+
+		int workers = Math.max(1, Math.min(threads, size));
+		Bounds bounds;
+		if (workers == 1) {
+			bounds = scan(stack, thresholds, channels, slices, next, timings);
+		} else {
+			ExecutorService pool = Executors.newFixedThreadPool(workers);
+			try {
+				List<Future<Bounds>> parts = new ArrayList<Future<Bounds>>(workers);
+				for (int w=0; w<workers; w++) {
+					parts.add(pool.submit(new Callable<Bounds>() {
+						public Bounds call() {
+							return scan(stack, thresholds, channels, slices, next, timings);
+						}
+					}));
+				}
+				bounds = new Bounds(slices);
+				for (Future<Bounds> part : parts) bounds.add(part.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Finding the empty space was interrupted", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Finding the empty space failed", e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+
+		int minZ = 0, maxZ = slices - 1;
+		while (minZ < slices && !bounds.z[minZ]) minZ++;
+		while (maxZ > minZ && !bounds.z[maxZ]) maxZ--;
+		if (bounds.maxX < 0 || minZ == slices) return null;
+
+		int x0 = Math.max(0, bounds.minX - MARGIN), x1 = Math.min(width - 1, bounds.maxX + MARGIN);
+		int y0 = Math.max(0, bounds.minY - MARGIN), y1 = Math.min(height - 1, bounds.maxY + MARGIN);
+		int z0 = Math.max(0, minZ - MARGIN), z1 = Math.min(slices - 1, maxZ + MARGIN);
+		return new CropBox(x0, y0, z0, x1 - x0 + 1, y1 - y0 + 1, z1 - z0 + 1);
+	}
+
+	/** Scan the slices handed out by next, until there are none left. */
+	private static Bounds scan(ImageStack stack, double[] thresholds, int channels, int slices,
+			AtomicInteger next, ExportTimings timings) {
+		Bounds bounds = new Bounds(slices);
+		int size = stack.getSize();
+		for (int n; (n = next.getAndIncrement()) < size; ) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new CancellationException("Finding the empty space was cancelled");
+			}
+			// Stack index n+1 is channel n%channels, slice (n/channels)%slices
+			Object pixels = stack.getPixels(n + 1);
+			long start = System.nanoTime();
+			if (scanSlice(pixels, stack.getWidth(), stack.getHeight(), thresholds[n % channels], bounds)) {
+				bounds.z[(n / channels) % slices] = true;
+			}
+			if (timings != null) {
+				timings.add(ExportTimings.Stage.CROP, start, ExportTimings.byteSize(pixels), 1);
+			}
+		}
+		return bounds;
+	}
+
+	/** Grow bounds by the non-empty rows and columns of a slice; false if it is empty. */
+	private static boolean scanSlice(Object pixels, int width, int height, double threshold, Bounds bounds) {
+		boolean any = false;
+		for (int y=0; y<height; y++) {
+			int offset = y*width;
+			int first = firstAbove(pixels, offset, width, 1, threshold);
+			if (first < 0) continue;
+			int last = firstAbove(pixels, offset + width - 1, width - first, -1, threshold);
+			bounds.minX = Math.min(bounds.minX, first);
+			bounds.maxX = Math.max(bounds.maxX, width - 1 - last);
+			bounds.minY = Math.min(bounds.minY, y);
+			bounds.maxY = Math.max(bounds.maxY, y);
+			any = true;
+		}
+		return any;
+	}
+
+	/**
+	 * Number of voxels stepped over, starting at offset and moving by step,
+	 * before one above the threshold; -1 if none of the count voxels is.
+	 */
+	private static int firstAbove(Object pixels, int offset, int count, int step, double threshold) {
+		int i = offset;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int k=0; k<count; k++, i+=step) if ((p[i]&0xff) > threshold) return k;
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (int k=0; k<count; k++, i+=step) if ((p[i]&0xffff) > threshold) return k;
+		} else if (pixels instanceof float[]) {
+			float[] p = (float[])pixels;
+			for (int k=0; k<count; k++, i+=step) if (p[i] > threshold) return k;
+		} else {
+			int[] p = (int[])pixels;
+			for (int k=0; k<count; k++, i+=step) {
+				int c = p[i];
+				if (((c>>16)&0xff) > threshold || ((c>>8)&0xff) > threshold || (c&0xff) > threshold) return k;
+			}
+		}
+		return -1;
+	}
+
+	/** The box in x and y. */
+	public Rectangle getRectangle() {
+		return new Rectangle(x, y, width, height);
+	}
+
+	/** Whether the box is the whole of a width x height x depth volume. */
+	public boolean isWhole(int width, int height, int depth) {
+		return x == 0 && y == 0 && z == 0 && this.width == width && this.height == height && this.depth == depth;
+	}
+
+	/**
+	 * Json fields recording where the exported volume lies in the original
+	 * stack, in source voxels.
+	 */
+	public String jsonFields(int stackWidth, int stackHeight, int stackDepth) {
+		return ",\n        \"crop\": {\"x\": " + x + ", \"y\": " + y + ", \"z\": " + z
+				+ ", \"width\": " + width + ", \"height\": " + height + ", \"depth\": " + depth + "}"
+				+ ",\n        \"originalSize\": {\"x\": " + stackWidth + ", \"y\": " + stackHeight + ", \"z\": " + stackDepth + "}";
+	}
+
+	public String toString() {
+		return x + "," + y + "," + z + " " + width + "x" + height + "x" + depth;
+	}
+
+}
@@ -0,0 +1,232 @@
+package fpbioimage_helper;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.BorderFactory;
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
+import javax.swing.Timer;
+
+import ij.ImagePlus;
+
+/**
+ * Runs interactive exports one after the other on a background thread, so
+ * Fiji stays usable and further exports can be queued while one is running.
+ *
+ * Each queued image is locked until its exports have finished, so it can't
+ * be changed underneath them. A window lists the tasks with their state,
+ * the progress of each stage and a button to cancel them.
+ */
+public class ExportQueue {
+
+	private static final int REFRESH_MILLIS = 300;
+
+	private static ExportQueue instance;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "FPBioimage export");
+			// Never keeps Fiji from exiting
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final List<ExportTask> tasks = new ArrayList<ExportTask>();
+	private final Map<ImagePlus, Integer> locks = new IdentityHashMap<ImagePlus, Integer>();
+
+	// Only used on the event dispatch thread
+	private JFrame frame;
+	private JPanel rows;
+	private final Map<ExportTask, Row> rowOf = new IdentityHashMap<ExportTask, Row>();
+	private Timer timer;
+
+	public static synchronized ExportQueue getInstance() {
+		if (instance == null) instance = new ExportQueue();
+		return instance;
+	}
+
+	/** Add a task to the end of the queue and show it in the queue window. */
+	public void submit(final ExportTask task) {
+		synchronized (this) {
+			tasks.add(task);
+			lock(task.getImage());
+		}
+		task.setFuture(executor.submit(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					release(task);
+				}
+			}
+		}));
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				showWindow();
+			}
+		});
+	}
+
+	/** Give back the image lock held for a task that has finished or was dropped. */
+	void release(ExportTask task) {
+		if (!task.release()) return;
+		synchronized (this) {
+			unlock(task.getImage());
+		}
+	}
+
+	/** Tasks in the order they were queued. */
+	public synchronized List<ExportTask> getTasks() {
+		return new ArrayList<ExportTask>(tasks);
+	}
+
+	private synchronized void clearFinished() {
+		for (Iterator<ExportTask> i = tasks.iterator(); i.hasNext(); ) {
+			if (i.next().isFinished()) i.remove();
+		}
+	}
+
+	private void lock(ImagePlus imp) {
+		Integer count = locks.get(imp);
+		if (count != null) {
+			locks.put(imp, count + 1);
+		} else if (imp.lockSilently()) {
+			// An image someone else has locked is exported without our lock
+			locks.put(imp, 1);
+		}
+	}
+
+	private void unlock(ImagePlus imp) {
+		Integer count = locks.get(imp);
+		if (count == null) return;
+		if (count > 1) {
+			locks.put(imp, count - 1);
+		} else {
+			locks.remove(imp);
+			imp.unlock();
+		}
+	}
+
+	private void showWindow() {
+		if (frame == null) {
+			frame = new JFrame("FPBioimage exports");
+			rows = new JPanel();
+			rows.setLayout(new BoxLayout(rows, BoxLayout.Y_AXIS));
+			JScrollPane scroll = new JScrollPane(rows);
+			scroll.setPreferredSize(new Dimension(520, 240));
+
+			JButton clear = new JButton("Clear finished");
+			clear.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					clearFinished();
+					refresh();
+				}
+			});
+			JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+			buttons.add(clear);
+
+			frame.getContentPane().add(scroll, BorderLayout.CENTER);
+			frame.getContentPane().add(buttons, BorderLayout.SOUTH);
+			frame.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+			frame.pack();
+
+			timer = new Timer(REFRESH_MILLIS, new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					refresh();
+				}
+			});
+		}
+		refresh();
+		timer.start();
+		frame.setVisible(true);
+	}
+
+	/** Bring the rows up to date with the tasks; stops refreshing once all have finished. */
+	private void refresh() {
+		List<ExportTask> current = getTasks();
+		boolean changed = false;
+		for (Iterator<ExportTask> i = rowOf.keySet().iterator(); i.hasNext(); ) {
+			if (!current.contains(i.next())) {
+				i.remove();
+				changed = true;
+			}
+		}
+		boolean running = false;
+		for (ExportTask task : current) {
+			Row row = rowOf.get(task);
+			if (row == null) {
+				row = new Row(task);
+				rowOf.put(task, row);
+				changed = true;
+			}
+			row.update();
+			running |= !task.isFinished();
+		}
+		if (changed) {
+			rows.removeAll();
+			for (ExportTask task : current) rows.add(rowOf.get(task).panel);
+			rows.revalidate();
+			rows.repaint();
+		}
+		if (!running && timer != null) timer.stop();
+	}
+
+	/** One task in the queue window. */
+	private static class Row {
+		final ExportTask task;
+		final JPanel panel = new JPanel(new BorderLayout(8, 2));
+		final JLabel name = new JLabel();
+		final JProgressBar bar = new JProgressBar(0, 1000);
+		final JLabel stages = new JLabel(" ");
+		final JButton cancel = new JButton("Cancel");
+
+		Row(final ExportTask task) {
+			this.task = task;
+			bar.setStringPainted(true);
+			cancel.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					cancel.setEnabled(false);
+					task.cancel();
+				}
+			});
+			JPanel centre = new JPanel(new BorderLayout());
+			centre.add(bar, BorderLayout.NORTH);
+			centre.add(stages, BorderLayout.SOUTH);
+			panel.add(name, BorderLayout.NORTH);
+			panel.add(centre, BorderLayout.CENTER);
+			panel.add(cancel, BorderLayout.EAST);
+			panel.setBorder(BorderFactory.createEmptyBorder(4, 6, 4, 6));
+			panel.setMaximumSize(new Dimension(Integer.MAX_VALUE, panel.getPreferredSize().height));
+		}
+
+		void update() {
+			name.setText(task.getTitle() + " - " + task.getState().label);
+			double fraction = task.getFraction();
+			bar.setIndeterminate(fraction < 0 && task.getState() == ExportTask.State.RUNNING);
+			bar.setValue(fraction < 0 ? 0 : (int)Math.round(1000*fraction));
+			bar.setString(fraction < 0 ? "" : Math.round(100*fraction) + "%");
+			String text = task.getProgressText();
+			stages.setText(text.isEmpty() ? " " : text);
+			if (task.isFinished()) cancel.setEnabled(false);
+		}
+	}
+
+}
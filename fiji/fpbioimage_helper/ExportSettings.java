@@ -0,0 +1,230 @@
+package fpbioimage_helper;
+
+import java.util.regex.Pattern;
+
+import ij.ImagePlus;
+import ij.Macro;
+import ij.Prefs;
+
+/**
+ * Parameters of one FPBioimage export, as chosen in the dialog or given as
+ * plugin arguments / macro options in headless mode.
+ */
+public class ExportSettings {
+
+	/** Largest slice width, height and depth the viewer accepts. */
+	public static final int MAX_SIZE = 500;
+
+	static final Pattern NAME_SPECIAL = Pattern.compile ("[!@#£$%&*()+=|<>?{}\\[\\]~.,\\s]");
+
+	public String uniqueName;
+
+	public double voxelSizeX;
+	public double voxelSizeY;
+	public double voxelSizeZ;
+
+	public int resX;
+	public int resY;
+
+	public int numThreads = (int)Prefs.get("fp.persistent.threads", AtlasBuilder.defaultThreads());
+	public String pngCompression = Prefs.get("fp.persistent.pngcompression", "Maximum");
+	/** One of {@link AtlasFormat#NAMES}. */
+	public String atlasFormat = Prefs.get("fp.persistent.atlasformat", AtlasFormat.RGB.label);
+	/** One of {@link AtlasPacking#NAMES}. */
+	public String atlasPacking = Prefs.get("fp.persistent.atlaspacking", AtlasPacking.POWER_OF_TWO.label);
+	/** One of {@link ResamplingFilter#NAMES}. */
+	public String resampling = Prefs.get("fp.persistent.resampling", ResamplingFilter.BILINEAR.label);
+	/** One of {@link IntensityRange#NAMES}. */
+	public String intensityRange = Prefs.get("fp.persistent.intensityrange", IntensityRange.DISPLAY.label);
+
+	public boolean doSave = false;
+	public boolean doUpload = false;
+	public boolean openViewer = false;
+	/** Show the dataset in the browser, served from memory by the {@link PreviewServer}. */
+	public boolean preview = false;
+	public boolean streaming = false;
+
+	/** Reuse atlases from the {@link AtlasCache} when nothing but names, voxel sizes or viewer settings changed. */
+	public boolean useCache = Prefs.get("fp.persistent.cache", false);
+
+	/** Export only the {@link CropBox} of voxels above the background, leaving out empty margins and slices. */
+	public boolean autoCrop = Prefs.get("fp.persistent.autocrop", false);
+
+	/**
+	 * Voxels at or below this value are background when cropping; NaN uses
+	 * the bottom of each channel's intensity range.
+	 */
+	public double cropThreshold = Double.NaN;
+
+	/**
+	 * Edge length of the bricks a large volume is split into, or 0 to write a
+	 * single atlas set. With bricks the resolution and depth may exceed
+	 * {@link #MAX_SIZE}.
+	 */
+	public int brickSize = 0;
+
+	/** Number of resolution levels, each half the size of the one above; 1 writes full resolution only. */
+	public int levels = 1;
+
+	/** Slices to read ahead of the resampling threads; -1 reads ahead for virtual stacks only. */
+	public int prefetch = -1;
+
+	/** Folder the dataset folder is created in; null means ask (or the temp folder if not saving). */
+	public String savepath;
+
+	/**
+	 * Where uploads go: empty for FPB Host, otherwise a storage location as
+	 * read by {@link Bucket#getBackend(String)}.
+	 */
+	public String storage = Prefs.get("fp.persistent.storage", "");
+
+	/** Headless only: overwrite an existing upload instead of skipping it. */
+	public boolean overwrite = false;
+
+	/** Headless only: open input stacks as virtual stacks instead of loading them into memory. */
+	public boolean virtual = false;
+
+	/** Defaults for an image: its title, calibration and size (capped at 499). */
+	public static ExportSettings defaults(ImagePlus imp) {
+		ExportSettings s = new ExportSettings();
+		s.useImageDefaults(imp);
+		return s;
+	}
+
+	/** Reset the per-image fields (name, voxel sizes, resolution) from an image. */
+	public void useImageDefaults(ImagePlus imp) {
+		uniqueName = imp.getShortTitle();
+		voxelSizeX = imp.getCalibration().pixelWidth;
+		voxelSizeY = imp.getCalibration().pixelHeight;
+		voxelSizeZ = imp.getCalibration().pixelDepth;
+		resX = imp.getWidth() > MAX_SIZE ? MAX_SIZE-1 : imp.getWidth();
+		resY = imp.getHeight() > MAX_SIZE ? MAX_SIZE-1 : imp.getHeight();
+	}
+
+	/**
+	 * Read headless parameters from a macro-style option string, e.g.
+	 * "name=cells voxel_x=0.2 res_x=256 save=[/data/out] upload threads=8".
+	 * "storage=" uploads somewhere other than FPB Host, e.g.
+	 * "storage=[http://localhost:9000/datasets]".
+	 * Keys that are absent keep their current value.
+	 */
+	public void applyOptions(String options) {
+		uniqueName = Macro.getValue(options, "name", uniqueName);
+		voxelSizeX = number(options, "voxel_x", voxelSizeX);
+		voxelSizeY = number(options, "voxel_y", voxelSizeY);
+		voxelSizeZ = number(options, "voxel_z", voxelSizeZ);
+		resX = (int)number(options, "res_x", resX);
+		resY = (int)number(options, "res_y", resY);
+		numThreads = (int)number(options, "threads", numThreads);
+		prefetch = (int)number(options, "prefetch", prefetch);
+		brickSize = (int)number(options, "brick", brickSize);
+		levels = (int)number(options, "levels", levels);
+		pngCompression = Macro.getValue(options, "compression", pngCompression);
+		atlasFormat = Macro.getValue(options, "format", atlasFormat);
+		atlasPacking = Macro.getValue(options, "packing", atlasPacking);
+		resampling = Macro.getValue(options, "resampling", resampling);
+		intensityRange = Macro.getValue(options, "range", intensityRange);
+		savepath = Macro.getValue(options, "save", savepath);
+		doSave = savepath != null;
+		doUpload = hasFlag(options, "upload");
+		storage = Macro.getValue(options, "storage", storage);
+		streaming = hasFlag(options, "streaming");
+		useCache = hasFlag(options, "cache");
+		autoCrop = hasFlag(options, "crop");
+		cropThreshold = number(options, "crop_threshold", cropThreshold);
+		overwrite = hasFlag(options, "overwrite");
+		virtual = hasFlag(options, "virtual");
+		openViewer = false;
+		preview = false;
+	}
+
+	/**
+	 * Check the settings against an image. Returns an error message, or null
+	 * if the export can go ahead.
+	 */
+	public String check(ImagePlus imp) {
+		if (!doSave && !doUpload && !openViewer && !preview) {
+			return "Not saving locally or uploading: nothing to do!";
+		}
+		if (brickSize > 0) {
+			if (brickSize > MAX_SIZE) {
+				return "Maximum brick size is 500.";
+			}
+		} else {
+			if (resX > MAX_SIZE){
+				return "Maximum X or Y size is 500. Please check X dimension, or use bricks.";
+			}
+			if (resY > MAX_SIZE){
+				return "Maximum X or Y is 500. Please check Y dimension, or use bricks.";
+			}
+			// A cropped stack is checked once its non-blank depth is known
+			if (!autoCrop && imp.getNSlices() > MAX_SIZE){
+				return "Maximum Z size is 500. Please check Z dimension, or use bricks.";
+			}
+		}
+		if (resX < 1 || resY < 1){
+			return "X and Y resolution must be at least 1.";
+		}
+		if (levels < 1 || levels > 8){
+			return "Number of resolution levels must be between 1 and 8.";
+		}
+		if (numThreads < 1){
+			return "Number of threads must be at least 1.";
+		}
+		try {
+			PngEncoder.forPreset(pngCompression);
+			AtlasPacking.forName(atlasPacking);
+			ResamplingFilter.forName(resampling);
+			IntensityRange.forName(intensityRange);
+			if (AtlasFormat.forName(atlasFormat) == AtlasFormat.PACKED && levels > 1) {
+				return "Resolution levels are not available for packed atlases.";
+			}
+		} catch (IllegalArgumentException e) {
+			return e.getMessage();
+		}
+		return null;
+	}
+
+	/** Remember the choices that persist between exports. */
+	public void savePrefs() {
+		Prefs.set("fp.persistent.threads", numThreads);
+		Prefs.set("fp.persistent.pngcompression", pngCompression);
+		Prefs.set("fp.persistent.atlasformat", atlasFormat);
+		Prefs.set("fp.persistent.atlaspacking", atlasPacking);
+		Prefs.set("fp.persistent.resampling", resampling);
+		Prefs.set("fp.persistent.intensityrange", intensityRange);
+		Prefs.set("fp.persistent.cache", useCache);
+		Prefs.set("fp.persistent.autocrop", autoCrop);
+	}
+
+	/**
+	 * Unique names may not contain spaces or special characters, and must be
+	 * at least 4 characters long.
+	 */
+	public static boolean isValidName(String name) {
+		return name != null && name.length() >= 4 && !NAME_SPECIAL.matcher(name).find();
+	}
+
+	/** Replace anything not allowed in a unique name with underscores. */
+	public static String sanitizeName(String name) {
+		String clean = NAME_SPECIAL.matcher(name).replaceAll("_");
+		while (clean.length() < 4) clean += "_";
+		return clean;
+	}
+
+	private static double number(String options, String key, double defaultValue) {
+		String value = Macro.getValue(options, key, null);
+		if (value == null) return defaultValue;
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a number: " + key + "=" + value);
+		}
+	}
+
+	/** True if the options contain a bare keyword such as "upload". */
+	static boolean hasFlag(String options, String key) {
+		return (" " + options + " ").contains(" " + key + " ");
+	}
+
+}
@@ -0,0 +1,156 @@
+package fpbioimage_helper;
+
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * One export waiting in or run by the {@link ExportQueue}.
+ *
+ * The work itself is the task's {@link Body}, which drives the exporter
+ * (export, upload, dialogs). The task keeps track of its state, reports
+ * progress from the exporter's timings and, when it is cancelled while
+ * running, stops the exporter and removes what it had written or uploaded.
+ */
+public class ExportTask {
+
+	public enum State {
+		QUEUED("Queued"),
+		RUNNING("Running"),
+		DONE("Done"),
+		FAILED("Failed"),
+		CANCELLED("Cancelled");
+
+		public final String label;
+
+		State(String label) {
+			this.label = label;
+		}
+	}
+
+	/** What the task does with its exporter. */
+	public interface Body {
+		void run(AtlasExporter exporter) throws Exception;
+	}
+
+	private final String title;
+	private final ImagePlus imp;
+	private final AtlasExporter exporter;
+	private final Body body;
+
+	private volatile State state = State.QUEUED;
+	private volatile String message = "";
+	private Future<?> future;
+	private boolean released;
+
+	public ExportTask(String title, ImagePlus imp, AtlasExporter exporter, Body body) {
+		this.title = title;
+		this.imp = imp;
+		this.exporter = exporter;
+		this.body = body;
+	}
+
+	/** Run the body on the calling thread; called by the queue. */
+	void run() {
+		if (state != State.QUEUED) return;
+		state = State.RUNNING;
+		try {
+			body.run(exporter);
+			state = exporter.isCancelled() ? State.CANCELLED : State.DONE;
+		} catch (Throwable e) {
+			if (exporter.isCancelled() || Thread.currentThread().isInterrupted()) {
+				state = State.CANCELLED;
+			} else {
+				state = State.FAILED;
+				message = e.getMessage() != null ? e.getMessage() : e.toString();
+				IJ.log("FPBioimage: export of " + title + " failed: " + message);
+				IJ.handleException(e);
+			}
+		}
+		if (state == State.CANCELLED) {
+			// The interrupt has done its job; the clean-up must not be stopped by it too
+			Thread.interrupted();
+			IJ.showStatus("Cleaning up " + title);
+			exporter.cleanUp();
+			IJ.log("FPBioimage: export of " + title + " was cancelled");
+			IJ.showStatus("");
+			IJ.showProgress(1.0);
+		}
+	}
+
+	/**
+	 * Cancel the task. A queued task is dropped; a running one is stopped
+	 * and cleans up on its own thread.
+	 */
+	public void cancel() {
+		Future<?> f;
+		synchronized (this) {
+			if (state == State.DONE || state == State.FAILED || state == State.CANCELLED) return;
+			f = future;
+		}
+		exporter.cancel();
+		if (state == State.QUEUED && f != null && f.cancel(false)) {
+			state = State.CANCELLED;
+			ExportQueue.getInstance().release(this);
+			return;
+		}
+		// Wake up the running export wherever it is waiting
+		if (f != null) f.cancel(true);
+	}
+
+	synchronized void setFuture(Future<?> future) {
+		this.future = future;
+	}
+
+	/** Mark the task's resources as given back; true only the first time. */
+	synchronized boolean release() {
+		if (released) return false;
+		released = true;
+		return true;
+	}
+
+	public boolean isFinished() {
+		return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+	}
+
+	/**
+	 * Fraction of the slices resampled so far, or -1 when that isn't known,
+	 * as before the export starts or when the atlases came from the cache.
+	 */
+	public double getFraction() {
+		if (state == State.DONE) return 1;
+		ExportTimings timings = exporter.getTimings();
+		if (state != State.RUNNING || timings == null) return -1;
+		long slices = timings.items(ExportTimings.Stage.RESAMPLE);
+		return slices == 0 ? -1 : Math.min(1.0, (double)slices/exporter.expectedSlices());
+	}
+
+	/** The work done in each stage so far, for example "resample 120 slices, encode 8 atlases". */
+	public String getProgressText() {
+		if (state == State.FAILED) return message;
+		ExportTimings timings = exporter.getTimings();
+		if (timings == null || state == State.QUEUED) return "";
+		StringBuilder text = new StringBuilder();
+		for (ExportTimings.Stage stage : ExportTimings.Stage.values()) {
+			long items = timings.items(stage);
+			if (items == 0) continue;
+			if (text.length() > 0) text.append(", ");
+			text.append(stage.jsonName).append(' ').append(items).append(' ').append(stage.unit);
+		}
+		return text.toString();
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public ImagePlus getImage() {
+		return imp;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+}
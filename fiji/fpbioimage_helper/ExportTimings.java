@@ -0,0 +1,147 @@
+package fpbioimage_helper;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import ij.IJ;
+
+/**
+ * Time, bytes and item counts spent in each stage of an export, collected
+ * from all worker threads.
+ *
+ * For every stage both the busy time (summed over threads) and the wall time
+ * (first start to last end) are kept: the busy time says how expensive a
+ * stage is, the wall time how long it held up the export. Throughput is
+ * computed from the shorter of the two: the wall time when threads worked
+ * side by side, the busy time when the stage waited in between (as when
+ * atlases are streamed).
+ */
+public class ExportTimings {
+
+	public enum Stage {
+		RANGE("range", "slices"),
+		CROP("crop", "slices"),
+		RESAMPLE("resample", "slices"),
+		PACK("pack", "slices"),
+		ENCODE("encode", "atlases"),
+		WRITE("write", "files"),
+		UPLOAD("upload", "files");
+
+		public final String jsonName;
+		public final String unit;
+
+		Stage(String jsonName, String unit) {
+			this.jsonName = jsonName;
+			this.unit = unit;
+		}
+	}
+
+	public static final String FILE_NAME = "timings.json";
+
+	private final int n = Stage.values().length;
+	private final long[] busy = new long[n];
+	private final long[] first = new long[n];
+	private final long[] last = new long[n];
+	private final long[] bytes = new long[n];
+	private final long[] items = new long[n];
+	private final long created = System.nanoTime();
+
+	/**
+	 * Record one piece of work that started at startNanos (from
+	 * System.nanoTime()) and ends now.
+	 */
+	public void add(Stage stage, long startNanos, long byteCount, int itemCount) {
+		long end = System.nanoTime();
+		int s = stage.ordinal();
+		synchronized (this) {
+			if (items[s] == 0 && busy[s] == 0) {
+				first[s] = startNanos;
+				last[s] = end;
+			} else {
+				first[s] = Math.min(first[s], startNanos);
+				last[s] = Math.max(last[s], end);
+			}
+			busy[s] += end - startNanos;
+			bytes[s] += byteCount;
+			items[s] += itemCount;
+		}
+	}
+
+	public synchronized double wallSeconds(Stage stage) {
+		int s = stage.ordinal();
+		return (last[s] - first[s])/1e9;
+	}
+
+	public synchronized double busySeconds(Stage stage) {
+		return busy[stage.ordinal()]/1e9;
+	}
+
+	public synchronized long bytes(Stage stage) {
+		return bytes[stage.ordinal()];
+	}
+
+	public synchronized long items(Stage stage) {
+		return items[stage.ordinal()];
+	}
+
+	/** Log one line per stage that did any work. */
+	public void log(String title) {
+		for (Stage stage : Stage.values()) {
+			log(title, stage);
+		}
+	}
+
+	/** Log the timings of one stage, if it did any work. */
+	public void log(String title, Stage stage) {
+		if (items(stage) == 0) return;
+		double seconds = activeSeconds(stage);
+		IJ.log(String.format(Locale.ROOT, "FPBioimage: %s: %-8s %7.2f s wall, %7.2f s busy, %8.1f MB, %7.1f MB/s, %7.1f %s/s",
+				title, stage.jsonName, wallSeconds(stage), busySeconds(stage), bytes(stage)/1e6,
+				perSecond(bytes(stage)/1e6, seconds), perSecond(items(stage), seconds), stage.unit));
+	}
+
+	/** Write the timings of all stages as json. */
+	public void write(String path) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8);
+		try {
+			out.write("{\n");
+			out.write(String.format(Locale.ROOT, "    \"totalSeconds\": %.3f,\n", (System.nanoTime() - created)/1e9));
+			out.write("    \"stages\": {");
+			String separator = "";
+			for (Stage stage : Stage.values()) {
+				double seconds = activeSeconds(stage);
+				out.write(separator);
+				out.write(String.format(Locale.ROOT, "\n        \"%s\": {\"wallSeconds\": %.3f, \"busySeconds\": %.3f, "
+						+ "\"bytes\": %d, \"%s\": %d, \"mbPerSecond\": %.2f, \"%sPerSecond\": %.2f}",
+						stage.jsonName, wallSeconds(stage), busySeconds(stage), bytes(stage), stage.unit, items(stage),
+						perSecond(bytes(stage)/1e6, seconds), stage.unit, perSecond(items(stage), seconds)));
+				separator = ",";
+			}
+			out.write("\n    }\n}\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private double activeSeconds(Stage stage) {
+		return Math.min(wallSeconds(stage), busySeconds(stage));
+	}
+
+	private static double perSecond(double amount, double seconds) {
+		return seconds > 0 ? amount/seconds : 0;
+	}
+
+	/** Size in bytes of a slice's pixel array. */
+	static long byteSize(Object pixels) {
+		if (pixels instanceof byte[]) return ((byte[])pixels).length;
+		if (pixels instanceof short[]) return 2L*((short[])pixels).length;
+		if (pixels instanceof float[]) return 4L*((float[])pixels).length;
+		if (pixels instanceof int[]) return 4L*((int[])pixels).length;
+		return 0;
+	}
+
+}
@@ -0,0 +1,254 @@
+package fpbioimage_helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Histogram of the 16 or 32-bit values of one channel of a stack, over all
+ * its z-slices and timepoints, from a single streaming pass.
+ *
+ * Slices are read once each, spread over several threads that each keep
+ * their own histogram, so virtual stacks are never held in memory. 16-bit
+ * values have a bin each. 32-bit values are binned on the top 16 bits of
+ * an order-preserving copy of their bit pattern, which keeps the exact
+ * order of the values and a relative precision of 1/128 whatever their
+ * range, so no min/max pass is needed first.
+ *
+ * From the histogram come the global range for an {@link IntensityRange}
+ * and defaults for the viewer's intensity and threshold.
+ */
+public class IntensityHistogram {
+
+	public static final int BINS = 65536;
+
+	/** What the viewer starts with when nothing better is known. */
+	public static final double DEFAULT_INTENSITY = 1.5;
+	public static final double DEFAULT_THRESHOLD = 0.05;
+
+	private final boolean floatData;
+	private final long[] counts = new long[BINS];
+	private long total;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	private IntensityHistogram(boolean floatData) {
+		this.floatData = floatData;
+	}
+
+	/**
+	 * Measure channel (1-based) of a 16 or 32-bit image over all z-slices
+	 * and timepoints, using up to threads threads. Time spent is recorded in
+	 * timings, if that isn't null.
+	 */
+	public static IntensityHistogram measure(final ImagePlus imp, int channel, int threads, final ExportTimings timings) {
+		if (imp.getBitDepth() != 16 && imp.getBitDepth() != 32) {
+			throw new IllegalArgumentException("Only 16 and 32-bit images have an intensity histogram");
+		}
+		final boolean floatData = imp.getBitDepth() == 32;
+		final ImageStack stack = imp.getStack();
+		int channels = imp.getNChannels();
+		final int[] indices = new int[imp.getNSlices()*imp.getNFrames()];
+		for (int i=0; i<indices.length; i++) indices[i] = i*channels + channel;
+
+		int workers = Math.max(1, Math.min(threads, indices.length));
+		final AtomicInteger next = new AtomicInteger();
+		IntensityHistogram histogram;
+		if (workers == 1) {
+			histogram = measureSlices(stack, indices, next, floatData, timings);
+		} else {
+			ExecutorService pool = Executors.newFixedThreadPool(workers);
+			try {
+				List<Future<IntensityHistogram>> parts = new ArrayList<Future<IntensityHistogram>>(workers);
+				for (int w=0; w<workers; w++) {
+					parts.add(pool.submit(new Callable<IntensityHistogram>() {
+						public IntensityHistogram call() {
+							return measureSlices(stack, indices, next, floatData, timings);
+						}
+					}));
+				}
+				histogram = new IntensityHistogram(floatData);
+				for (Future<IntensityHistogram> part : parts) histogram.merge(part.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Intensity measurement was interrupted", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Intensity measurement failed", e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		if (!floatData && histogram.total > 0) {
+			// The extreme 16-bit values are the first and last bins in use
+			histogram.min = histogram.firstBin(0);
+			histogram.max = histogram.lastBin(0);
+		}
+		return histogram;
+	}
+
+	/** Add up the slices handed out by next, until there are none left. */
+	private static IntensityHistogram measureSlices(ImageStack stack, int[] indices, AtomicInteger next,
+			boolean floatData, ExportTimings timings) {
+		IntensityHistogram histogram = new IntensityHistogram(floatData);
+		for (int i; (i = next.getAndIncrement()) < indices.length; ) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new CancellationException("Intensity measurement was cancelled");
+			}
+			Object pixels = stack.getPixels(indices[i]);
+			long start = System.nanoTime();
+			histogram.add(pixels);
+			if (timings != null) {
+				timings.add(ExportTimings.Stage.RANGE, start, ExportTimings.byteSize(pixels), 1);
+			}
+		}
+		return histogram;
+	}
+
+	private void add(Object pixels) {
+		if (floatData) {
+			float[] p = (float[])pixels;
+			float low = Float.POSITIVE_INFINITY, high = Float.NEGATIVE_INFINITY;
+			int n = 0;
+			for (float v : p) {
+				// NaN and infinite values don't belong to any range
+				if (Float.isNaN(v) || Float.isInfinite(v)) continue;
+				counts[bin(v)]++;
+				if (v < low) low = v;
+				if (v > high) high = v;
+				n++;
+			}
+			if (n > 0) {
+				min = Math.min(min, low);
+				max = Math.max(max, high);
+			}
+			total += n;
+		} else {
+			short[] p = (short[])pixels;
+			for (short v : p) counts[v&0xffff]++;
+			total += p.length;
+		}
+	}
+
+	private void merge(IntensityHistogram other) {
+		for (int i=0; i<BINS; i++) counts[i] += other.counts[i];
+		total += other.total;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	/** Bin of a 32-bit value: the top 16 bits of its bits, flipped so they sort like the values. */
+	private static int bin(float value) {
+		int bits = Float.floatToIntBits(value);
+		int key = bits < 0 ? ~bits : bits | 0x80000000;
+		return key >>> 16;
+	}
+
+	/** Smallest value that falls into bin. */
+	private double lowValue(int bin) {
+		if (!floatData) return bin;
+		return value(bin << 16);
+	}
+
+	/** Largest value that falls into bin. */
+	private double highValue(int bin) {
+		if (!floatData) return bin;
+		return value((bin << 16) | 0xffff);
+	}
+
+	private static double value(int key) {
+		return Float.intBitsToFloat(key < 0 ? key & 0x7fffffff : ~key);
+	}
+
+	private int firstBin(long skip) {
+		long count = 0;
+		for (int i=0; i<BINS; i++) {
+			count += counts[i];
+			if (count > skip) return i;
+		}
+		return 0;
+	}
+
+	private int lastBin(long skip) {
+		long count = 0;
+		for (int i=BINS-1; i>=0; i--) {
+			count += counts[i];
+			if (count > skip) return i;
+		}
+		return BINS-1;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * Range of values to map to 8 bits, as {min, max}, or null for the
+	 * display range or if there were no values.
+	 */
+	public double[] range(IntensityRange mode) {
+		if (mode == IntensityRange.DISPLAY || total == 0) return null;
+		if (mode == IntensityRange.PERCENTILE) {
+			long skip = (long)(total*IntensityRange.SATURATED);
+			double low = Math.max(min, lowValue(firstBin(skip)));
+			double high = Math.min(max, highValue(lastBin(skip)));
+			if (low < high) return new double[] {low, high};
+		}
+		return new double[] {min, max};
+	}
+
+	/**
+	 * Starting intensity and threshold for the viewer, as {intensity,
+	 * threshold}, when the values are mapped from range (min, max). Most
+	 * voxels of a microscope volume are background, so the threshold is put
+	 * at the median. The intensity is chosen so the mean voxel above the
+	 * threshold is drawn as bright as the old fixed default of 1.5 drew
+	 * one at a third of the range.
+	 */
+	public double[] viewerDefaults(double[] range) {
+		if (range == null || total == 0 || !(range[1] > range[0])) {
+			return new double[] {DEFAULT_INTENSITY, DEFAULT_THRESHOLD};
+		}
+		double threshold = clamp(normalise(lowValue(firstBin(total/2)), range), 0.01, 0.5);
+		double sum = 0;
+		long count = 0;
+		for (int i=0; i<BINS; i++) {
+			if (counts[i] == 0) continue;
+			double value = normalise((lowValue(i) + highValue(i))/2, range);
+			if (value <= threshold) continue;
+			sum += counts[i]*value;
+			count += counts[i];
+		}
+		double intensity = count > 0 ? clamp(DEFAULT_INTENSITY/3/(sum/count), 0.5, 5.0) : DEFAULT_INTENSITY;
+		return new double[] {round(intensity), round(threshold)};
+	}
+
+	private static double normalise(double value, double[] range) {
+		return clamp((value - range[0])/(range[1] - range[0]), 0.0, 1.0);
+	}
+
+	private static double clamp(double value, double low, double high) {
+		return Math.max(low, Math.min(high, value));
+	}
+
+	private static double round(double value) {
+		return Math.round(value*1000)/1000.0;
+	}
+
+}
@@ -0,0 +1,86 @@
+package fpbioimage_helper;
+
+/**
+ * Maps the grey values of a slice to atlas colours through a single table.
+ *
+ * 8-bit values index the 256 entry colour table directly. For 16 and 32-bit
+ * data the scaling to 8 bits is folded into a {@link #SIZE} entry table, so
+ * converting a pixel is one lookup however wide the data: 16-bit values are
+ * the index, and 32-bit values are first quantized to 16 bits over the
+ * range min-max. The table is built once per atlas set and shared by all
+ * slices and threads.
+ */
+public class IntensityLut {
+
+	/** Entries of the table for 16 and 32-bit data. */
+	public static final int SIZE = 65536;
+
+	public final double min;
+	public final double max;
+
+	private final int[] table;
+	// Quantization of 32-bit values to table indices
+	private final double floatScale;
+
+	private IntensityLut(double min, double max, int[] table, double floatScale) {
+		this.min = min;
+		this.max = max;
+		this.table = table;
+		this.floatScale = floatScale;
+	}
+
+	/**
+	 * The table for slices of the given bit depth, rendered with the display
+	 * range min-max and the 256 entry colour table lut. RGB slices don't use
+	 * a table, and get the 8-bit one.
+	 */
+	public static IntensityLut forBitDepth(int bitDepth, double min, double max, int[] lut) {
+		if (bitDepth == 16) return forShorts(min, max, lut);
+		if (bitDepth == 32) return forFloats(min, max, lut);
+		return new IntensityLut(0, 255, lut, 0);
+	}
+
+	private static IntensityLut forShorts(double min, double max, int[] lut) {
+		// Same scaling as ShortProcessor.create8BitImage()
+		int low = (int)min;
+		double scale = 256.0/((int)max - low + 1);
+		int[] table = new int[SIZE];
+		for (int v=0; v<SIZE; v++) {
+			int value = v - low;
+			if (value < 0) value = 0;
+			value = (int)(value*scale + 0.5);
+			table[v] = lut[value > 255 ? 255 : value];
+		}
+		return new IntensityLut(min, max, table, 0);
+	}
+
+	private static IntensityLut forFloats(double min, double max, int[] lut) {
+		// FloatProcessor.create8BitImage() rounds value*256/(max-min); with
+		// SIZE = 256*256 levels those rounding steps fall on level boundaries
+		int[] table = new int[SIZE];
+		for (int i=0; i<SIZE; i++) {
+			int value = (int)(i/256.0 + 0.5);
+			table[i] = lut[value > 255 ? 255 : value];
+		}
+		double scale = max > min ? SIZE/(max - min) : Double.POSITIVE_INFINITY;
+		return new IntensityLut(min, max, table, scale);
+	}
+
+	/** Colour of an 8 or 16-bit value, or of a 32-bit value quantized by {@link #index}. */
+	public int argb(int value) {
+		return table[value];
+	}
+
+	/** Colour of a 32-bit value. */
+	public int argb(double value) {
+		return table[index(value)];
+	}
+
+	/** Table index of a 32-bit value; values outside min-max saturate. */
+	public int index(double value) {
+		double level = (value - min)*floatScale;
+		if (!(level > 0)) return 0;
+		return level >= SIZE ? SIZE - 1 : (int)level;
+	}
+
+}
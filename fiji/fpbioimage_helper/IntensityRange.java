@@ -0,0 +1,38 @@
+package fpbioimage_helper;
+
+/**
+ * Which range of 16 and 32-bit values is mapped to the 8 bits of the atlases.
+ *
+ * Display range is the original behaviour: the range the image is shown
+ * with, which may have been set from a single slice. The other two come
+ * from one pass over all z-slices and timepoints of each channel, so every
+ * slice gets the same contrast: the full stack min and max, or the 0.1 and
+ * 99.9 percentiles, which keeps a few hot pixels from darkening the rest.
+ * 8-bit and RGB images always use the display range.
+ */
+public enum IntensityRange {
+
+	DISPLAY("Display range"),
+	MIN_MAX("Stack min and max"),
+	PERCENTILE("Stack 0.1-99.9%");
+
+	/** Names offered in the dialog, in declaration order. */
+	public static final String[] NAMES = {DISPLAY.label, MIN_MAX.label, PERCENTILE.label};
+
+	/** Fraction of the voxels left out at each end of the percentile range. */
+	static final double SATURATED = 0.001;
+
+	public final String label;
+
+	IntensityRange(String label) {
+		this.label = label;
+	}
+
+	public static IntensityRange forName(String name) {
+		for (IntensityRange range : values()) {
+			if (range.label.equalsIgnoreCase(name) || range.name().equalsIgnoreCase(name)) return range;
+		}
+		throw new IllegalArgumentException("Unknown intensity range: " + name);
+	}
+
+}
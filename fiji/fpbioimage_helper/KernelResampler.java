@@ -0,0 +1,278 @@
+package fpbioimage_helper;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Separable resampler for the area-average and Lanczos filters, writing a
+ * slice straight into an atlas like {@link SliceResampler}.
+ *
+ * Slices are filtered along x, into a float buffer holding the source rows
+ * that are needed, then along y. For each output column and row the first
+ * source pixel and the weights of a fixed number of taps are computed once
+ * in the constructor; taps beyond the edge of the slice are folded onto the
+ * edge pixel. The y pass adds whole rows at a time, a loop the JIT turns
+ * into SIMD instructions. Scratch buffers are kept per thread, so one
+ * resampler can be shared by every slice and thread of an export.
+ *
+ * Values are converted to 8 bits after filtering, through the same
+ * {@link IntensityLut} as SliceResampler, so Lanczos overshoot is clipped once.
+ */
+public class KernelResampler implements Resampler {
+
+	/** Lobes of the Lanczos kernel. */
+	static final int LANCZOS_LOBES = 3;
+
+	// Source rectangle and the width of the slices it is in
+	private final int stride;
+	private final int srcX, srcY;
+	private final int srcWidth;
+	private final int dstWidth;
+	private final int dstHeight;
+
+	// First source column/row and tap weights of each output column/row
+	private final int tapsX, tapsY;
+	private final int[] startX, startY;
+	private final float[] weightsX, weightsY;
+	// Source rows read by the y pass
+	private final int firstRow, rows;
+
+	private final ThreadLocal<float[][]> scratch = new ThreadLocal<float[][]>();
+
+	public KernelResampler(ResamplingFilter filter, int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+		this(filter, srcWidth, srcHeight, dstWidth, dstHeight, 0, 0, dstWidth, dstHeight);
+	}
+
+	/**
+	 * Resampler for the window (windowX, windowY, windowWidth, windowHeight)
+	 * of the slice resized to dstWidth x dstHeight.
+	 */
+	public KernelResampler(ResamplingFilter filter, int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+			int windowX, int windowY, int windowWidth, int windowHeight) {
+		this(filter, srcWidth, new Rectangle(0, 0, srcWidth, srcHeight), dstWidth, dstHeight,
+				windowX, windowY, windowWidth, windowHeight);
+	}
+
+	/**
+	 * Resampler for a window of the rectangle source of slices stackWidth
+	 * pixels wide, resized to dstWidth x dstHeight.
+	 */
+	public KernelResampler(ResamplingFilter filter, int stackWidth, Rectangle source, int dstWidth, int dstHeight,
+			int windowX, int windowY, int windowWidth, int windowHeight) {
+		if (filter == ResamplingFilter.BILINEAR) {
+			throw new IllegalArgumentException("Bilinear resampling is done by SliceResampler");
+		}
+		int srcWidth = source.width, srcHeight = source.height;
+		this.stride = stackWidth;
+		this.srcX = source.x;
+		this.srcY = source.y;
+		this.srcWidth = srcWidth;
+		this.dstWidth = windowWidth;
+		this.dstHeight = windowHeight;
+
+		tapsX = taps(filter, srcWidth, dstWidth);
+		startX = new int[windowWidth];
+		weightsX = new float[windowWidth*tapsX];
+		weights(filter, srcWidth, dstWidth, windowX, windowWidth, tapsX, startX, weightsX);
+
+		tapsY = taps(filter, srcHeight, dstHeight);
+		startY = new int[windowHeight];
+		weightsY = new float[windowHeight*tapsY];
+		weights(filter, srcHeight, dstHeight, windowY, windowHeight, tapsY, startY, weightsY);
+
+		int first = srcHeight, last = 0;
+		for (int y=0; y<windowHeight; y++) {
+			first = Math.min(first, startY[y]);
+			last = Math.max(last, startY[y] + tapsY);
+		}
+		firstRow = first;
+		rows = last - first;
+	}
+
+	/** Source pixels per output pixel: the kernel is widened by this much when reducing. */
+	private static double support(ResamplingFilter filter, int src, int dst) {
+		double scale = (double)src/dst;
+		if (filter == ResamplingFilter.AREA) return scale;
+		return LANCZOS_LOBES*Math.max(1.0, scale);
+	}
+
+	private static int taps(ResamplingFilter filter, int src, int dst) {
+		// A box scale pixels wide touches at most ceil(scale)+1 source pixels;
+		// the Lanczos kernel reaches support pixels either side of the centre
+		int taps = filter == ResamplingFilter.AREA
+				? (int)Math.ceil((double)src/dst) + 1
+				: (int)Math.ceil(2*support(filter, src, dst)) + 2;
+		return Math.min(taps, src);
+	}
+
+	/**
+	 * Fill in the first source pixel and the normalised tap weights of each
+	 * output pixel in [window, window+length) along one axis.
+	 */
+	private static void weights(ResamplingFilter filter, int src, int dst, int window, int length,
+			int taps, int[] start, float[] weights) {
+		double scale = (double)src/dst;
+		double support = support(filter, src, dst);
+		double[] w = new double[src];
+		for (int i=0; i<length; i++) {
+			// Centre of output pixel i in source coordinates, where pixel j covers [j, j+1)
+			double centre = (window + i + 0.5)*scale;
+			int lo = (int)Math.floor(centre - support);
+			int hi = (int)Math.ceil(centre + support);
+			int first = src, last = -1;
+			double sum = 0;
+			for (int j=lo; j<=hi; j++) {
+				double weight = filter == ResamplingFilter.AREA
+						? overlap(centre - scale/2, centre + scale/2, j)
+						: lanczos((j + 0.5 - centre)/Math.max(1.0, scale));
+				// Rounding can leave a sliver of the box on the pixel past its end
+				if (weight == 0 || (filter == ResamplingFilter.AREA && weight < 1e-9)) continue;
+				// Pixels beyond the edge repeat the edge pixel
+				int k = Math.max(0, Math.min(src-1, j));
+				if (first > last) {
+					first = k;
+					last = k;
+					w[k] = 0;
+				}
+				while (k < first) w[--first] = 0;
+				while (k > last) w[++last] = 0;
+				w[k] += weight;
+				sum += weight;
+			}
+			if (first > last) {
+				// Enlarging with the area filter can fall between pixel centres
+				first = last = Math.max(0, Math.min(src-1, (int)centre));
+				w[first] = sum = 1;
+			}
+			// Keep all taps inside the slice
+			int s = Math.max(0, Math.min(first, src - taps));
+			start[i] = s;
+			for (int t=0; t<taps; t++) {
+				int k = s + t;
+				weights[i*taps + t] = k >= first && k <= last ? (float)(w[k]/sum) : 0f;
+			}
+		}
+	}
+
+	/** Length of [a, b) that lies within source pixel j. */
+	private static double overlap(double a, double b, int j) {
+		return Math.max(0, Math.min(b, j + 1) - Math.max(a, j));
+	}
+
+	private static double lanczos(double x) {
+		if (x == 0) return 1;
+		if (Math.abs(x) >= LANCZOS_LOBES) return 0;
+		double px = Math.PI*x;
+		return LANCZOS_LOBES*Math.sin(px)*Math.sin(px/LANCZOS_LOBES)/(px*px);
+	}
+
+	@Override
+	public void resample(Object pixels, IntensityLut lut, int[] dst, int dstStride, int dx, int dy) {
+		int channels = pixels instanceof int[] ? 3 : 1;
+		if (!(pixels instanceof int[] || pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[])) {
+			throw new IllegalArgumentException("Unsupported pixel type: " + pixels.getClass());
+		}
+		float[][] buffers = buffers(channels);
+		float[] row = buffers[2*channels];
+
+		// x pass: every source row the y pass reads, for each colour channel
+		for (int c=0; c<channels; c++) {
+			float[] filtered = buffers[c];
+			for (int r=0; r<rows; r++) {
+				readRow(pixels, firstRow + r, c, row);
+				filterRow(row, filtered, r*dstWidth);
+			}
+		}
+
+		// y pass, one output row at a time
+		for (int y=0; y<dstHeight; y++) {
+			for (int c=0; c<channels; c++) {
+				filterColumns(buffers[c], y, buffers[channels + c]);
+			}
+			int offset = (dy + y)*dstStride + dx;
+			if (channels == 3) {
+				float[] r = buffers[3], g = buffers[4], b = buffers[5];
+				for (int x=0; x<dstWidth; x++) {
+					dst[offset + x] = 0xff000000 | (clamp(r[x])<<16) | (clamp(g[x])<<8) | clamp(b[x]);
+				}
+			} else {
+				toLut(pixels, buffers[1], lut, dst, offset);
+			}
+		}
+	}
+
+	private float[][] buffers(int channels) {
+		float[][] buffers = scratch.get();
+		if (buffers == null || buffers.length != 2*channels + 1) {
+			buffers = new float[2*channels + 1][];
+			for (int c=0; c<channels; c++) {
+				buffers[c] = new float[rows*dstWidth];
+				buffers[channels + c] = new float[dstWidth];
+			}
+			buffers[2*channels] = new float[srcWidth];
+			scratch.set(buffers);
+		}
+		return buffers;
+	}
+
+	/** Row y of the source rectangle as floats; channel 0, 1, 2 is red, green, blue of RGB data. */
+	private void readRow(Object pixels, int y, int channel, float[] row) {
+		int offset = (srcY + y)*stride + srcX;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int x=0; x<srcWidth; x++) row[x] = p[offset + x]&0xff;
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (int x=0; x<srcWidth; x++) row[x] = p[offset + x]&0xffff;
+		} else if (pixels instanceof float[]) {
+			System.arraycopy((float[])pixels, offset, row, 0, srcWidth);
+		} else {
+			int[] p = (int[])pixels;
+			int shift = 16 - 8*channel;
+			for (int x=0; x<srcWidth; x++) row[x] = (p[offset + x]>>shift)&0xff;
+		}
+	}
+
+	private void filterRow(float[] row, float[] out, int outOffset) {
+		for (int x=0; x<dstWidth; x++) {
+			int s = startX[x], w = x*tapsX;
+			float sum = 0;
+			for (int t=0; t<tapsX; t++) {
+				sum += weightsX[w + t]*row[s + t];
+			}
+			out[outOffset + x] = sum;
+		}
+	}
+
+	private void filterColumns(float[] filtered, int y, float[] out) {
+		Arrays.fill(out, 0, dstWidth, 0f);
+		int w = y*tapsY;
+		for (int t=0; t<tapsY; t++) {
+			float weight = weightsY[w + t];
+			if (weight == 0) continue;
+			int offset = (startY[y] + t - firstRow)*dstWidth;
+			for (int x=0; x<dstWidth; x++) {
+				out[x] += weight*filtered[offset + x];
+			}
+		}
+	}
+
+	/** Colour one filtered row of grey values with the LUT, which also scales them to 8 bits. */
+	private void toLut(Object pixels, float[] values, IntensityLut lut, int[] dst, int offset) {
+		if (pixels instanceof float[]) {
+			for (int x=0; x<dstWidth; x++) dst[offset + x] = lut.argb((double)values[x]);
+			return;
+		}
+		int top = pixels instanceof short[] ? IntensityLut.SIZE - 1 : 255;
+		for (int x=0; x<dstWidth; x++) {
+			int v = (int)(values[x] + 0.5f);
+			dst[offset + x] = lut.argb(v < 0 ? 0 : (v > top ? top : v));
+		}
+	}
+
+	private static int clamp(float value) {
+		int v = (int)(value + 0.5f);
+		return v < 0 ? 0 : (v > 255 ? 255 : v);
+	}
+
+}
@@ -0,0 +1,84 @@
+package fpbioimage_helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+
+/**
+ * Stores datasets in a local folder, for example the document root of a
+ * web server, or to try uploads out without any object store.
+ *
+ * Objects are written to a temporary file and then moved into place, in
+ * one step where the file system allows it, so a reader never sees half an
+ * object.
+ */
+public class LocalBackend implements StorageBackend {
+
+	private final File root;
+	private final String publicBaseUrl;
+
+	/**
+	 * @param root folder the keys are relative to
+	 * @param publicBaseUrl address the folder is served at, ending in '/', or null for file: URLs
+	 */
+	public LocalBackend(File root, String publicBaseUrl) {
+		this.root = root;
+		this.publicBaseUrl = publicBaseUrl;
+	}
+
+	public String getName() {
+		return root.getPath();
+	}
+
+	public boolean exists(String key) {
+		return file(key).isFile();
+	}
+
+	public Date lastModified(String key) {
+		File file = file(key);
+		return file.isFile() ? new Date(file.lastModified()) : null;
+	}
+
+	public void put(String key, byte[] data) throws IOException {
+		File target = file(key);
+		File folder = target.getParentFile();
+		if (!folder.isDirectory() && !folder.mkdirs()) {
+			throw new IOException("Could not create " + folder);
+		}
+		File temp = File.createTempFile(target.getName(), ".tmp", folder);
+		try {
+			Files.write(temp.toPath(), data);
+			try {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	public void delete(String key) throws IOException {
+		Files.deleteIfExists(file(key).toPath());
+	}
+
+	public String publicUrl(String key) {
+		if (publicBaseUrl != null) return publicBaseUrl + key;
+		return file(key).toURI().toString();
+	}
+
+	public void shutdown() {
+		// Nothing is held open between calls
+	}
+
+	private File file(String key) {
+		if (key.startsWith("/") || key.contains("..")) {
+			throw new IllegalArgumentException("Not a key below the storage folder: " + key);
+		}
+		return new File(root, key);
+	}
+
+}
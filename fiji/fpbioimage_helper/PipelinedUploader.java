@@ -0,0 +1,191 @@
+package fpbioimage_helper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import ij.IJ;
+
+/**
+ * Uploads files to a {@link StorageBackend} straight from memory, as they
+ * are produced.
+ *
+ * {@link #put} hands a buffer to the upload threads and returns, so the
+ * caller can go on building and encoding the next atlas while this one is
+ * on its way. Buffers waiting or in flight are limited to a total size;
+ * put() blocks when that is reached. Failed uploads are retried with an
+ * exponential backoff, like {@link AtlasUploader}. The keys uploaded so
+ * far are in {@link #getUploadedKeys}, so a cancelled export can remove them.
+ */
+public class PipelinedUploader {
+
+	/** Default limit on the bytes queued or in flight. */
+	public static final int MAX_BYTES_IN_FLIGHT = 128*1024*1024;
+
+	private final StorageBackend storage;
+	private final ExecutorService pool;
+	private final Semaphore inFlight;
+	private final int maxBytesInFlight;
+	private final List<Future<Void>> uploads = new ArrayList<Future<Void>>();
+	private final List<String> uploadedKeys = Collections.synchronizedList(new ArrayList<String>());
+
+	private int maxAttempts = 4;
+	private long initialBackoffMillis = 500;
+	private ExportTimings timings = new ExportTimings();
+
+	public PipelinedUploader(StorageBackend storage, int numThreads) {
+		this(storage, numThreads, MAX_BYTES_IN_FLIGHT);
+	}
+
+	public PipelinedUploader(StorageBackend storage, int numThreads, int maxBytesInFlight) {
+		this.storage = storage;
+		this.pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		this.maxBytesInFlight = maxBytesInFlight;
+		this.inFlight = new Semaphore(maxBytesInFlight);
+	}
+
+	public void setRetries(int maxAttempts, long initialBackoffMillis) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.initialBackoffMillis = initialBackoffMillis;
+	}
+
+	/** Record time spent uploading in timings. */
+	public void setTimings(ExportTimings timings) {
+		this.timings = timings;
+	}
+
+	/**
+	 * Queue data for upload to key. The buffer must not be changed
+	 * afterwards.
+	 *
+	 * @throws IOException if an earlier upload has already failed for good
+	 */
+	public void put(final String key, final byte[] data) throws IOException {
+		checkFailures();
+		// A buffer bigger than the limit waits for everything else to finish
+		final int permits = Math.min(data.length, maxBytesInFlight);
+		try {
+			inFlight.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Upload was interrupted", e);
+		}
+		Future<Void> upload = pool.submit(new Callable<Void>() {
+			public Void call() throws IOException {
+				try {
+					putWithRetries(key, data);
+				} finally {
+					inFlight.release(permits);
+				}
+				return null;
+			}
+		});
+		synchronized (uploads) {
+			uploads.add(upload);
+		}
+	}
+
+	/**
+	 * Wait for all queued uploads and shut the upload threads down.
+	 *
+	 * @throws IOException if any upload failed after all retries
+	 */
+	public void finish() throws IOException {
+		try {
+			List<Future<Void>> all;
+			synchronized (uploads) {
+				all = new ArrayList<Future<Void>>(uploads);
+			}
+			for (Future<Void> f : all) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Upload was interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new RuntimeException("Upload failed", e.getCause());
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Stop the upload threads, abandoning anything not started yet. Uploads
+	 * already being sent don't stop when interrupted, so this waits for them:
+	 * afterwards {@link #getUploadedKeys} lists everything that was stored.
+	 */
+	public void close() {
+		pool.shutdownNow();
+		boolean interrupted = false;
+		while (!pool.isTerminated()) {
+			try {
+				pool.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/** Keys uploaded so far. */
+	public List<String> getUploadedKeys() {
+		synchronized (uploadedKeys) {
+			return new ArrayList<String>(uploadedKeys);
+		}
+	}
+
+	/** Fail early rather than keep building atlases that can't be uploaded. */
+	private void checkFailures() throws IOException {
+		synchronized (uploads) {
+			for (Future<Void> f : uploads) {
+				if (!f.isDone()) continue;
+				try {
+					f.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Upload was interrupted", e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+					throw new RuntimeException("Upload failed", e.getCause());
+				}
+			}
+		}
+	}
+
+	private void putWithRetries(String key, byte[] data) throws IOException {
+		Exception lastError = null;
+		for (int attempt=0; attempt<maxAttempts; attempt++) {
+			if (attempt > 0) {
+				long wait = initialBackoffMillis << (attempt-1);
+				IJ.log("FPBioimage: retrying upload of " + key + " in " + wait + " ms");
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Upload was interrupted", e);
+				}
+			}
+			long start = System.nanoTime();
+			try {
+				storage.put(key, data);
+				timings.add(ExportTimings.Stage.UPLOAD, start, data.length, 1);
+				uploadedKeys.add(key);
+				return;
+			} catch (IOException e) {
+				if (Thread.currentThread().isInterrupted()) throw e;
+				lastError = e;
+			}
+		}
+		throw new IOException("Upload of " + key + " failed after " + maxAttempts + " attempts", lastError);
+	}
+
+}
@@ -0,0 +1,265 @@
+package fpbioimage_helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Minimal PNG encoder for atlas images, with a choice of deflate level and
+ * row filter.
+ *
+ * ImageIO always encodes at maximum compression with adaptive filtering,
+ * which is the slow part of an export. Here the level and filter can be
+ * chosen per export: fast settings for local previews, maximum compression
+ * for hosted uploads. An encoder holds no state between calls, so one
+ * instance can encode several atlases at the same time.
+ */
+public class PngEncoder {
+
+	/** Row filters from the PNG specification, plus per-row adaptive selection. */
+	public enum Filter {
+		NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+	}
+
+	/** PNG colour types used for atlases, with their bytes per pixel. */
+	public enum ColourType {
+		GREY(0, 1), RGB(2, 3), RGBA(6, 4);
+
+		final int code;
+		final int bytesPerPixel;
+
+		ColourType(int code, int bytesPerPixel) {
+			this.code = code;
+			this.bytesPerPixel = bytesPerPixel;
+		}
+	}
+
+	/** Names of the presets offered in the dialog, fastest first. */
+	public static final String[] PRESETS = {"Fast", "Balanced", "Maximum"};
+
+	private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+	private static final int IDAT_SIZE = 64*1024;
+
+	private final int level;
+	private final Filter filter;
+
+	public PngEncoder(int level, Filter filter) {
+		if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Deflate level must be between 0 and 9: " + level);
+		}
+		this.level = level;
+		this.filter = filter;
+	}
+
+	/**
+	 * Fast: no filtering, deflate level 1. Balanced: adaptive filtering,
+	 * level 6. Maximum: adaptive filtering, level 9, as ImageIO does.
+	 */
+	public static PngEncoder forPreset(String preset) {
+		if ("Fast".equals(preset)) return new PngEncoder(1, Filter.NONE);
+		if ("Balanced".equals(preset)) return new PngEncoder(6, Filter.ADAPTIVE);
+		if ("Maximum".equals(preset)) return new PngEncoder(9, Filter.ADAPTIVE);
+		throw new IllegalArgumentException("Unknown PNG compression preset: " + preset);
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public Filter getFilter() {
+		return filter;
+	}
+
+	/** Encode packed ARGB pixels as an 8-bit RGB PNG. Alpha is dropped. */
+	public void encode(int[] argb, int width, int height, OutputStream out) throws IOException {
+		encode(argb, width, height, ColourType.RGB, out);
+	}
+
+	/**
+	 * Encode packed ARGB pixels as an 8-bit PNG of the given colour type.
+	 * GREY takes the blue channel, RGB drops alpha and RGBA keeps all four.
+	 */
+	public void encode(int[] argb, int width, int height, ColourType colourType, OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.write(SIGNATURE);
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream h = new DataOutputStream(header);
+		h.writeInt(width);
+		h.writeInt(height);
+		h.writeByte(8);	// bit depth
+		h.writeByte(colourType.code);	// colour type
+		h.writeByte(0);	// compression: deflate
+		h.writeByte(0);	// filter method: adaptive
+		h.writeByte(0);	// no interlace
+		writeChunk(data, "IHDR", header.toByteArray(), header.size());
+
+		int bpp = colourType.bytesPerPixel;
+		int rowBytes = width*bpp;
+		byte[] previous = new byte[rowBytes];
+		byte[] current = new byte[rowBytes];
+		byte[][] filtered = new byte[5][rowBytes + 1];
+
+		Deflater deflater = new Deflater(level);
+		try {
+			IdatOutputStream idat = new IdatOutputStream(data);
+			DeflaterOutputStream zip = new DeflaterOutputStream(idat, deflater, IDAT_SIZE);
+			for (int y=0; y<height; y++) {
+				int offset = y*width;
+				packRow(argb, offset, width, colourType, current);
+				byte[] row = filterRow(current, previous, bpp, filtered);
+				zip.write(row, 0, rowBytes + 1);
+
+				byte[] swap = previous; previous = current; current = swap;
+			}
+			zip.finish();
+			idat.flush();
+		} finally {
+			deflater.end();
+		}
+
+		writeChunk(data, "IEND", new byte[0], 0);
+		data.flush();
+	}
+
+	private static void packRow(int[] argb, int offset, int width, ColourType colourType, byte[] row) {
+		switch (colourType) {
+		case GREY:
+			for (int x=0; x<width; x++) {
+				row[x] = (byte)argb[offset + x];
+			}
+			break;
+		case RGB:
+			for (int x=0, i=0; x<width; x++) {
+				int p = argb[offset + x];
+				row[i++] = (byte)(p>>16);
+				row[i++] = (byte)(p>>8);
+				row[i++] = (byte)p;
+			}
+			break;
+		default:
+			for (int x=0, i=0; x<width; x++) {
+				int p = argb[offset + x];
+				row[i++] = (byte)(p>>16);
+				row[i++] = (byte)(p>>8);
+				row[i++] = (byte)p;
+				row[i++] = (byte)(p>>24);
+			}
+		}
+	}
+
+	private byte[] filterRow(byte[] row, byte[] prior, int bpp, byte[][] filtered) {
+		switch (filter) {
+		case NONE: return applyFilter(0, row, prior, bpp, filtered[0]);
+		case SUB: return applyFilter(1, row, prior, bpp, filtered[1]);
+		case UP: return applyFilter(2, row, prior, bpp, filtered[2]);
+		case AVERAGE: return applyFilter(3, row, prior, bpp, filtered[3]);
+		case PAETH: return applyFilter(4, row, prior, bpp, filtered[4]);
+		default:
+			// Minimum sum of absolute differences, as recommended by the spec
+			int best = 0;
+			long bestSum = Long.MAX_VALUE;
+			for (int type=0; type<5; type++) {
+				byte[] out = applyFilter(type, row, prior, bpp, filtered[type]);
+				long sum = 0;
+				for (int i=1; i<out.length && sum<bestSum; i++) {
+					sum += Math.abs((int)out[i]);
+				}
+				if (sum < bestSum) {
+					bestSum = sum;
+					best = type;
+				}
+			}
+			return filtered[best];
+		}
+	}
+
+	private static byte[] applyFilter(int type, byte[] row, byte[] prior, int bpp, byte[] out) {
+		out[0] = (byte)type;
+		int n = row.length;
+		switch (type) {
+		case 0:
+			System.arraycopy(row, 0, out, 1, n);
+			break;
+		case 1:
+			for (int i=0; i<n; i++) {
+				int left = i>=bpp ? row[i-bpp]&0xff : 0;
+				out[i+1] = (byte)((row[i]&0xff) - left);
+			}
+			break;
+		case 2:
+			for (int i=0; i<n; i++) {
+				out[i+1] = (byte)((row[i]&0xff) - (prior[i]&0xff));
+			}
+			break;
+		case 3:
+			for (int i=0; i<n; i++) {
+				int left = i>=bpp ? row[i-bpp]&0xff : 0;
+				out[i+1] = (byte)((row[i]&0xff) - ((left + (prior[i]&0xff))>>1));
+			}
+			break;
+		default:
+			for (int i=0; i<n; i++) {
+				int a = i>=bpp ? row[i-bpp]&0xff : 0;
+				int b = prior[i]&0xff;
+				int c = i>=bpp ? prior[i-bpp]&0xff : 0;
+				int p = a + b - c;
+				int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+				int predictor = (pa<=pb && pa<=pc) ? a : (pb<=pc ? b : c);
+				out[i+1] = (byte)((row[i]&0xff) - predictor);
+			}
+		}
+		return out;
+	}
+
+	private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, 0, length);
+		out.writeInt((int)crc.getValue());
+	}
+
+	/** Collects compressed data and emits it as IDAT chunks of up to IDAT_SIZE bytes. */
+	private static class IdatOutputStream extends OutputStream {
+		private final DataOutputStream out;
+		private final byte[] buffer = new byte[IDAT_SIZE];
+		private int count = 0;
+
+		IdatOutputStream(DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) flush();
+			buffer[count++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) flush();
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n; off += n; len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				writeChunk(out, "IDAT", buffer, count);
+				count = 0;
+			}
+		}
+	}
+
+}
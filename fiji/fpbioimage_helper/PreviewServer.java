@@ -0,0 +1,327 @@
+package fpbioimage_helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ij.IJ;
+import ij.Prefs;
+
+/**
+ * Serves exported datasets to a browser on this computer, straight from
+ * memory.
+ *
+ * Opening index.html from disk doesn't work, because browsers won't let a
+ * file: page load jsonInfo.json. This server stores the files of a dataset
+ * as the {@link StorageBackend} an export uploads to, so the atlases go
+ * from the encoder to the browser without touching the disk, and serves
+ * them on the loopback address (port fp.persistent.previewport, default any
+ * free port), e.g. at http://127.0.0.1:&lt;port&gt;/&lt;uniqueName&gt;/.
+ *
+ * Requests are answered by a pool of threads, so the atlases of a dataset
+ * load in parallel. Every response has an ETag and Last-Modified date, and
+ * must be revalidated because a new export of the same name replaces the
+ * files; unchanged files then cost a 304. Html, json and javascript are
+ * gzipped once when stored and sent compressed to browsers that accept it.
+ * The datasets exported longest ago are dropped when the total size
+ * passes {@link #MAX_BYTES}.
+ */
+public class PreviewServer implements StorageBackend {
+
+	/** Default limit on the bytes of all datasets kept for previews. */
+	public static final long MAX_BYTES = 1L << 30;
+
+	private static final int THREADS = 8;
+
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+	private static PreviewServer instance;
+
+	/** One stored file, with what is needed to answer requests for it. */
+	private static class Entry {
+		final byte[] data;
+		final byte[] gzipped;
+		final String contentType;
+		final String etag;
+		// Whole seconds, as sent in Last-Modified
+		final long lastModified;
+
+		Entry(byte[] data, byte[] gzipped, String contentType, String etag, long lastModified) {
+			this.data = data;
+			this.gzipped = gzipped;
+			this.contentType = contentType;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService pool;
+	private final String baseUrl;
+	// Host headers of requests addressed to this server
+	private final Set<String> hosts = new HashSet<String>();
+	private final long maxBytes;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	// Bytes stored per dataset (first key segment), least recently written first
+	private final LinkedHashMap<String, Long> datasetBytes = new LinkedHashMap<String, Long>();
+	private long totalBytes;
+
+	/** Start a server on the given loopback port, or any free port if it is 0. */
+	public PreviewServer(int port, long maxBytes) throws IOException {
+		this.maxBytes = maxBytes;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FPBioimage preview");
+				// Never keeps Fiji from exiting
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(pool);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					respond(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		// The dispatcher thread is a daemon when started from one, such as the export queue's
+		server.start();
+		InetAddress address = server.getAddress().getAddress();
+		String host = address.getHostAddress();
+		if (address instanceof Inet6Address) {
+			// Browsers send the short form of IPv6 literals, in brackets
+			if (address.isLoopbackAddress()) host = "::1";
+			host = "[" + host + "]";
+		}
+		hosts.add(host + ":" + getPort());
+		hosts.add("localhost:" + getPort());
+		baseUrl = "http://" + host + ":" + getPort() + "/";
+	}
+
+	/** The shared server, started on first use with the port set in the preferences. */
+	public static synchronized PreviewServer getInstance() throws IOException {
+		if (instance == null) {
+			instance = new PreviewServer((int)Prefs.get("fp.persistent.previewport", 0), MAX_BYTES);
+			IJ.log("FPBioimage: previews are served at " + instance.baseUrl);
+		}
+		return instance;
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+		pool.shutdownNow();
+	}
+
+	public String getName() {
+		return "preview server " + baseUrl;
+	}
+
+	public boolean exists(String key) {
+		return entries.containsKey(key);
+	}
+
+	public Date lastModified(String key) {
+		Entry entry = entries.get(key);
+		return entry == null ? null : new Date(entry.lastModified*1000);
+	}
+
+	public void put(String key, byte[] data) throws IOException {
+		checkKey(key);
+		String type = contentType(key);
+		byte[] gzipped = null;
+		if (!type.startsWith("image/")) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length/4 + 64);
+			GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+			gzip.write(data);
+			gzip.close();
+			if (bytes.size() < data.length) gzipped = bytes.toByteArray();
+		}
+		Entry entry = new Entry(data, gzipped, type, "\"" + DigestUtils.md5Hex(data) + "\"",
+				System.currentTimeMillis()/1000);
+		Entry old = entries.put(key, entry);
+		account(key, size(entry) - size(old));
+	}
+
+	public void delete(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) account(key, -size(old));
+	}
+
+	/** Remove every file of the dataset stored under prefix, e.g. before it is exported again. */
+	public void deleteDataset(String prefix) {
+		for (String key : new ArrayList<String>(entries.keySet())) {
+			if (key.startsWith(prefix + "/")) delete(key);
+		}
+	}
+
+	public String publicUrl(String key) {
+		return baseUrl + key;
+	}
+
+	/** Nothing to release: the shared server runs until Fiji exits, or {@link #stop}. */
+	public void shutdown() {
+	}
+
+	/** Keep count of the bytes of each dataset, and drop the oldest datasets over the limit. */
+	private void account(String key, long bytes) {
+		String dataset = key.substring(0, key.indexOf('/'));
+		List<String> dropped = new ArrayList<String>();
+		synchronized (datasetBytes) {
+			Long stored = datasetBytes.remove(dataset);
+			long now = (stored == null ? 0 : stored) + bytes;
+			if (now > 0) datasetBytes.put(dataset, now);
+			totalBytes += bytes;
+			long excess = totalBytes - maxBytes;
+			Iterator<Map.Entry<String, Long>> oldest = datasetBytes.entrySet().iterator();
+			while (excess > 0 && oldest.hasNext()) {
+				Map.Entry<String, Long> next = oldest.next();
+				if (next.getKey().equals(dataset)) break;
+				dropped.add(next.getKey());
+				excess -= next.getValue();
+			}
+		}
+		for (String name : dropped) {
+			IJ.log("FPBioimage: preview of " + name + " dropped to make room");
+			deleteDataset(name);
+		}
+	}
+
+	private static long size(Entry entry) {
+		if (entry == null) return 0;
+		return entry.data.length + (entry.gzipped == null ? 0 : entry.gzipped.length);
+	}
+
+	private static void checkKey(String key) {
+		if (key.startsWith("/") || key.contains("..") || key.indexOf('/') < 1) {
+			throw new IllegalArgumentException("Not a key of a dataset file: " + key);
+		}
+	}
+
+	private static String contentType(String key) {
+		String name = key.toLowerCase(Locale.ROOT);
+		if (name.endsWith(".png")) return "image/png";
+		if (name.endsWith(".html")) return "text/html; charset=utf-8";
+		if (name.endsWith(".json")) return "application/json; charset=utf-8";
+		if (name.endsWith(".js")) return "text/javascript; charset=utf-8";
+		return "application/octet-stream";
+	}
+
+	private void respond(HttpExchange exchange) throws IOException {
+		Headers request = exchange.getRequestHeaders();
+		Headers response = exchange.getResponseHeaders();
+		String method = exchange.getRequestMethod();
+		if (!method.equals("GET") && !method.equals("HEAD")) {
+			response.set("Allow", "GET, HEAD");
+			exchange.sendResponseHeaders(405, -1);
+			return;
+		}
+		// Only answer pages addressed to the loopback server, not other names
+		// that a web page could make resolve to it
+		String host = request.getFirst("Host");
+		if (host != null && !hosts.contains(host.toLowerCase(Locale.ROOT))) {
+			exchange.sendResponseHeaders(403, -1);
+			return;
+		}
+
+		String path = exchange.getRequestURI().getPath();
+		String key = path.startsWith("/") ? path.substring(1) : path;
+		if (key.isEmpty() || key.endsWith("/")) key += "index.html";
+		Entry entry = entries.get(key);
+		if (entry == null && entries.containsKey(key + "/index.html")) {
+			// The page loads its files relative to the folder, so it must be addressed as one
+			response.set("Location", path + "/");
+			exchange.sendResponseHeaders(301, -1);
+			return;
+		}
+		if (entry == null) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+
+		response.set("Content-Type", entry.contentType);
+		response.set("ETag", entry.etag);
+		response.set("Last-Modified", HTTP_DATE.format(ZonedDateTime.ofInstant(Instant.ofEpochSecond(entry.lastModified), ZoneOffset.UTC)));
+		response.set("Cache-Control", "no-cache");
+		response.set("Vary", "Accept-Encoding");
+		if (notModified(request, entry)) {
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+
+		byte[] body = entry.data;
+		String accept = request.getFirst("Accept-Encoding");
+		if (entry.gzipped != null && accept != null && accept.toLowerCase(Locale.ROOT).contains("gzip")) {
+			body = entry.gzipped;
+			response.set("Content-Encoding", "gzip");
+		}
+		if (method.equals("HEAD")) {
+			response.set("Content-Length", Integer.toString(body.length));
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/** Whether the browser's copy is still current, by ETag or else by date. */
+	private static boolean notModified(Headers request, Entry entry) {
+		String ifNoneMatch = request.getFirst("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) tag = tag.substring(2);
+				if (tag.equals(entry.etag) || tag.equals("*")) return true;
+			}
+			return false;
+		}
+		String ifModifiedSince = request.getFirst("If-Modified-Since");
+		if (ifModifiedSince != null) {
+			try {
+				return ZonedDateTime.parse(ifModifiedSince, HTTP_DATE).toEpochSecond() >= entry.lastModified;
+			} catch (DateTimeParseException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,19 @@
+package fpbioimage_helper;
+
+/**
+ * Resizes a slice and writes it straight into an atlas. Implementations
+ * work out their sampling positions and weights once, in the constructor,
+ * and can then be shared by every slice and thread of an export.
+ */
+public interface Resampler {
+
+	/**
+	 * Resample one slice into dst, an ARGB atlas of width dstStride, with the
+	 * top-left corner of the slice at (dx, dy).
+	 *
+	 * @param pixels raw pixel array of the slice, as returned by ImageStack.getPixels()
+	 * @param lut maps grey values to colours, for the slice's type; ignored for RGB data
+	 */
+	void resample(Object pixels, IntensityLut lut, int[] dst, int dstStride, int dx, int dy);
+
+}
@@ -0,0 +1,34 @@
+package fpbioimage_helper;
+
+/**
+ * How slices are resized to the atlas slice size.
+ *
+ * Bilinear is the original filter, matching ImageProcessor.resize(). It
+ * only looks at the four nearest source pixels, so large reductions alias.
+ * Area average gives each output pixel the mean of the source pixels it
+ * covers. Lanczos uses a three-lobed windowed sinc, which keeps edges
+ * sharper than area averaging and also works for enlarging.
+ */
+public enum ResamplingFilter {
+
+	BILINEAR("Bilinear"),
+	AREA("Area average"),
+	LANCZOS("Lanczos");
+
+	/** Names offered in the dialog, in declaration order. */
+	public static final String[] NAMES = {BILINEAR.label, AREA.label, LANCZOS.label};
+
+	public final String label;
+
+	ResamplingFilter(String label) {
+		this.label = label;
+	}
+
+	public static ResamplingFilter forName(String name) {
+		for (ResamplingFilter filter : values()) {
+			if (filter.label.equalsIgnoreCase(name) || filter.name().equalsIgnoreCase(name)) return filter;
+		}
+		throw new IllegalArgumentException("Unknown resampling filter: " + name);
+	}
+
+}
@@ -0,0 +1,155 @@
+package fpbioimage_helper;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.security.AWSCredentials;
+
+import ij.IJ;
+
+/**
+ * Stores datasets in an Amazon S3 bucket, FPB Host by default.
+ *
+ * The S3 client is created on first use and then shared, so the HTTP
+ * connections in its pool are reused by all upload threads. The pool is
+ * sized for several uploads at once, each using all the worker threads.
+ */
+public class S3Backend implements StorageBackend {
+
+	/** Public address of objects in AWS buckets, before the bucket name. */
+	public static final String AWS_URL = "https://s3.amazonaws.com/";
+
+	/** HTTP connections kept open to the store, whatever the number of threads. */
+	static final int MIN_CONNECTIONS = 32;
+
+	protected final String bucketName;
+	private final AWSCredentials credentials;
+	private final String publicBaseUrl;
+	private S3Service s3Service;
+
+	/**
+	 * @param publicBaseUrl address objects are viewed at, ending in '/', or null for the AWS address of the bucket
+	 */
+	public S3Backend(String bucketName, AWSCredentials credentials, String publicBaseUrl) {
+		this.bucketName = bucketName;
+		this.credentials = credentials;
+		this.publicBaseUrl = publicBaseUrl != null ? publicBaseUrl : AWS_URL + bucketName + "/";
+	}
+
+	/** The FPB Host bucket, with the credentials that come with the plugin. */
+	public static S3Backend fpbHost() throws IOException {
+		InputStream encrypted = Bucket.class.getClassLoader().getResourceAsStream("org/jets3t/service/bucket.enc");
+		if (encrypted == null) throw new IOException("FPB Host credentials are missing");
+		try {
+			AWSCredentials credentials = (AWSCredentials) AWSCredentials.load(Fpbioimage_helper.bucketName, new BufferedInputStream(encrypted));
+			return new S3Backend(Fpbioimage_helper.bucketName, credentials, null);
+		} catch (ServiceException e) {
+			throw new IOException("Could not read the FPB Host credentials", e);
+		}
+	}
+
+	public String getName() {
+		return "s3://" + bucketName;
+	}
+
+	public String getBucketName() {
+		return bucketName;
+	}
+
+	/** The shared client, created on first use. */
+	public synchronized S3Service getS3Service() {
+		if (s3Service == null) {
+			s3Service = new RestS3Service(credentials, null, null, properties());
+		}
+		return s3Service;
+	}
+
+	/** Client settings: jets3t's defaults with a larger connection pool. */
+	protected Jets3tProperties properties() {
+		Jets3tProperties properties = new Jets3tProperties();
+		properties.loadAndReplaceProperties(Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME), Constants.JETS3T_PROPERTIES_FILENAME);
+		String connections = Integer.toString(Math.max(MIN_CONNECTIONS, 4*AtlasBuilder.defaultThreads()));
+		properties.setProperty("httpclient.max-connections", connections);
+		properties.setProperty("httpclient.max-connections-per-host", connections);
+		// Don't wait minutes on a store that has gone away; the uploaders retry
+		properties.setProperty("httpclient.connection-timeout-ms", "10000");
+		properties.setProperty("httpclient.socket-timeout-ms", "60000");
+		return properties;
+	}
+
+	public boolean exists(String key) throws IOException {
+		try {
+			return getS3Service().isObjectInBucket(bucketName, key);
+		} catch (ServiceException e) {
+			throw new IOException("Could not check " + key + " in " + getName(), e);
+		}
+	}
+
+	public Date lastModified(String key) throws IOException {
+		try {
+			// Only the headers are needed, not the object; a missing object is a 404
+			return getS3Service().getObjectDetails(bucketName, key).getLastModifiedDate();
+		} catch (ServiceException e) {
+			if (e.getResponseCode() == 404) return null;
+			throw new IOException("Could not check " + key + " in " + getName(), e);
+		}
+	}
+
+	/** Upload data with a public-read ACL, its content type and its MD5 for later comparisons. */
+	public void put(String key, byte[] data) throws IOException {
+		try {
+			getS3Service().putObject(bucketName, createObject(key, data));
+		} catch (ServiceException e) {
+			throw new IOException("Could not upload " + key + " to " + getName(), e);
+		}
+	}
+
+	public void delete(String key) throws IOException {
+		try {
+			getS3Service().deleteObject(bucketName, key);
+		} catch (ServiceException e) {
+			throw new IOException("Could not delete " + key + " from " + getName(), e);
+		}
+	}
+
+	public String publicUrl(String key) {
+		return publicBaseUrl + key;
+	}
+
+	/**
+	 * Close the client's pooled connections. Anything still using this
+	 * backend gets a new client on its next call.
+	 */
+	public synchronized void shutdown() {
+		if (s3Service == null) return;
+		try {
+			s3Service.shutdown();
+		} catch (ServiceException e) {
+			IJ.log("FPBioimage: could not close the connections to " + getName() + ": " + e.getMessage());
+		}
+		s3Service = null;
+	}
+
+	private static S3Object createObject(String key, byte[] data) throws IOException {
+		try {
+			S3Object object = new S3Object(key, data);
+			object.setContentType(AtlasUploader.contentType(key));
+			object.addMetadata(UploadManifest.MD5_METADATA, object.getMd5HashAsHex());
+			object.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
+			return object;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Could not hash " + key, e);
+		}
+	}
+
+}
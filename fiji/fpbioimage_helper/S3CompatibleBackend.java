@@ -0,0 +1,53 @@
+package fpbioimage_helper;
+
+import java.net.URI;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.security.AWSCredentials;
+
+/**
+ * Stores datasets in a bucket of any store speaking the S3 protocol, such as
+ * a MinIO server, at an endpoint like http://localhost:9000.
+ *
+ * Buckets are addressed by path (endpoint/bucket/key) rather than by host
+ * name, which such stores usually need and which works for localhost.
+ */
+public class S3CompatibleBackend extends S3Backend {
+
+	private final URI endpoint;
+
+	/**
+	 * @param publicBaseUrl address objects are viewed at, ending in '/', or null for endpoint/bucket/
+	 */
+	public S3CompatibleBackend(URI endpoint, String bucketName, AWSCredentials credentials, String publicBaseUrl) {
+		super(bucketName, credentials, publicBaseUrl != null ? publicBaseUrl : baseUrl(endpoint) + "/" + bucketName + "/");
+		this.endpoint = endpoint;
+	}
+
+	@Override
+	public String getName() {
+		return baseUrl(endpoint) + "/" + bucketName;
+	}
+
+	@Override
+	protected Jets3tProperties properties() {
+		Jets3tProperties properties = super.properties();
+		boolean https = "https".equalsIgnoreCase(endpoint.getScheme());
+		int port = endpoint.getPort() > 0 ? endpoint.getPort() : (https ? 443 : 80);
+		properties.setProperty("s3service.s3-endpoint", endpoint.getHost());
+		properties.setProperty(https ? "s3service.s3-endpoint-https-port" : "s3service.s3-endpoint-http-port", Integer.toString(port));
+		properties.setProperty("s3service.https-only", Boolean.toString(https));
+		properties.setProperty("s3service.disable-dns-buckets", "true");
+		String path = endpoint.getPath();
+		if (path != null && path.length() > 1) {
+			properties.setProperty("s3service.s3-endpoint-virtual-path", path.endsWith("/") ? path.substring(0, path.length()-1) : path);
+		}
+		return properties;
+	}
+
+	private static String baseUrl(URI endpoint) {
+		String url = endpoint.toString();
+		return url.endsWith("/") ? url.substring(0, url.length()-1) : url;
+	}
+
+}
@@ -0,0 +1,114 @@
+package fpbioimage_helper;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.ImageStack;
+
+/**
+ * Reads the slices of a stack ahead of the threads that resample them.
+ *
+ * Meant for virtual stacks, where every getPixels() call goes to disk. Reader
+ * threads walk through the slices in the order the atlas builder will ask
+ * for them and keep at most {@code depth} slices in memory that have not been
+ * collected yet, so disk reads overlap with resampling while memory stays
+ * bounded. A slice asked for before the readers got to it is read on the
+ * calling thread instead, and the readers skip it.
+ */
+public class SlicePrefetcher {
+
+	private final ImageStack stack;
+	private final int[] order;
+	private final Semaphore permits;
+	private final AtomicInteger next = new AtomicInteger();
+	private final ExecutorService readers;
+
+	private final Object lock = new Object();
+	private final Map<Integer, FutureTask<Object>> pending = new HashMap<Integer, FutureTask<Object>>();
+	private final Set<Integer> claimed = new HashSet<Integer>();
+
+	/**
+	 * @param stack the stack to read from
+	 * @param order 1-based slice numbers, in the order they will be collected
+	 * @param depth most slices read ahead and not yet collected
+	 * @param numReaders number of reader threads
+	 */
+	public SlicePrefetcher(ImageStack stack, int[] order, int depth, int numReaders) {
+		this.stack = stack;
+		this.order = order;
+		this.permits = new Semaphore(Math.max(1, depth));
+		numReaders = Math.max(1, Math.min(numReaders, order.length));
+		this.readers = Executors.newFixedThreadPool(numReaders);
+		for (int i=0; i<numReaders; i++) {
+			readers.submit(new Callable<Void>() {
+				public Void call() throws InterruptedException {
+					readAhead();
+					return null;
+				}
+			});
+		}
+	}
+
+	private void readAhead() throws InterruptedException {
+		int i;
+		while ((i = next.getAndIncrement()) < order.length) {
+			permits.acquire();
+			final int n = order[i];
+			FutureTask<Object> task;
+			synchronized (lock) {
+				if (claimed.remove(n)) {
+					// Already read by the consumer
+					permits.release();
+					continue;
+				}
+				task = new FutureTask<Object>(new Callable<Object>() {
+					public Object call() {
+						return stack.getPixels(n);
+					}
+				});
+				pending.put(n, task);
+			}
+			task.run();
+		}
+	}
+
+	/** Pixels of slice n (1-based), waiting for the readers if they are on it. */
+	public Object getPixels(int n) {
+		FutureTask<Object> task;
+		synchronized (lock) {
+			task = pending.remove(n);
+			if (task == null) claimed.add(n);
+		}
+		if (task == null) {
+			return stack.getPixels(n);
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Reading slice " + n + " was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Could not read slice " + n, e.getCause());
+		} finally {
+			permits.release();
+		}
+	}
+
+	/** Stop the reader threads and drop any slices that were not collected. */
+	public void close() {
+		readers.shutdownNow();
+		synchronized (lock) {
+			pending.clear();
+		}
+	}
+
+}
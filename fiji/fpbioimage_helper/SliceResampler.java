@@ -0,0 +1,232 @@
+package fpbioimage_helper;
+
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Bilinear resampler that writes a slice straight into an atlas.
+ *
+ * This does the same job as ImageProcessor.resize(BILINEAR) followed by
+ * getBufferedImage() and copySubImage(), but reads the raw stack pixels and
+ * writes ARGB values into the atlas int[] without any intermediate images.
+ * The sampling grid is the one ImageJ uses, so the output matches the old
+ * path. Source coordinates are computed once in the constructor, so one
+ * resampler can be shared by every slice (and every thread) of an export.
+ *
+ * A resampler can also produce just a window of the resized slice, which is
+ * how the bricks of a bricked export are cut out, and can resize just a
+ * rectangle of the source slice, which is how empty space is cropped.
+ */
+public class SliceResampler implements Resampler {
+
+	// Width of the source slices, which may be wider than the rectangle resized
+	private final int stride;
+	private final int dstWidth;
+	private final int dstHeight;
+	private final boolean copy;
+
+	// Neighbouring source columns/rows and the weight of the second one
+	private final int[] x0, x1, y0, y1;
+	private final double[] xFraction, yFraction;
+
+	public SliceResampler(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+		this(srcWidth, srcHeight, dstWidth, dstHeight, 0, 0, dstWidth, dstHeight);
+	}
+
+	/**
+	 * Resampler for the window (windowX, windowY, windowWidth, windowHeight)
+	 * of the slice resized to dstWidth x dstHeight.
+	 */
+	public SliceResampler(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+			int windowX, int windowY, int windowWidth, int windowHeight) {
+		this(srcWidth, new Rectangle(0, 0, srcWidth, srcHeight), dstWidth, dstHeight,
+				windowX, windowY, windowWidth, windowHeight);
+	}
+
+	/**
+	 * Resampler for a window of the rectangle source of slices stackWidth
+	 * pixels wide, resized to dstWidth x dstHeight.
+	 */
+	public SliceResampler(int stackWidth, Rectangle source, int dstWidth, int dstHeight,
+			int windowX, int windowY, int windowWidth, int windowHeight) {
+		int srcWidth = source.width, srcHeight = source.height;
+		this.stride = stackWidth;
+		this.dstWidth = windowWidth;
+		this.dstHeight = windowHeight;
+
+		x0 = new int[dstWidth]; x1 = new int[dstWidth]; xFraction = new double[dstWidth];
+		y0 = new int[dstHeight]; y1 = new int[dstHeight]; yFraction = new double[dstHeight];
+		// ImageJ copies the pixels unchanged when the size doesn't change
+		copy = srcWidth == dstWidth && srcHeight == dstHeight;
+		sampleGrid(srcWidth, dstWidth, copy, x0, x1, xFraction);
+		sampleGrid(srcHeight, dstHeight, copy, y0, y1, yFraction);
+		if (windowX != 0 || windowY != 0 || windowWidth != dstWidth || windowHeight != dstHeight) {
+			window(windowX, windowWidth, x0, x1, xFraction);
+			window(windowY, windowHeight, y0, y1, yFraction);
+		}
+		if (source.x != 0 || source.y != 0) {
+			offset(source.x, x0, x1);
+			offset(source.y, y0, y1);
+		}
+	}
+
+	private static void offset(int start, int[] i0, int[] i1) {
+		for (int i=0; i<i0.length; i++) {
+			i0[i] += start;
+			i1[i] += start;
+		}
+	}
+
+	private static void window(int start, int length, int[] i0, int[] i1, double[] fraction) {
+		System.arraycopy(i0, start, i0, 0, length);
+		System.arraycopy(i1, start, i1, 0, length);
+		System.arraycopy(fraction, start, fraction, 0, length);
+	}
+
+	private static void sampleGrid(int src, int dst, boolean copy, int[] i0, int[] i1, double[] fraction) {
+		if (copy || src == 1) {
+			for (int i=0; i<dst; i++) {
+				i0[i] = copy ? i : 0;
+				i1[i] = i0[i];
+				fraction[i] = 0.0;
+			}
+			return;
+		}
+		double srcCenter = src/2.0;
+		double scale = (double)dst/src;
+		double dstCenter = dst/2.0;
+		if (dst != src) dstCenter += scale/4.0;
+		double limit = src-1.0, limit2 = src-1.001;
+		for (int i=0; i<dst; i++) {
+			double s = (i-dstCenter)/scale + srcCenter;
+			if (s<0.0) s = 0.0;
+			if (s>=limit) s = limit2;
+			i0[i] = (int)s;
+			i1[i] = i0[i] + 1;
+			fraction[i] = s - i0[i];
+		}
+	}
+
+	/**
+	 * Colour table used to render grey-scale slices, taken from the processor
+	 * the user is looking at. Falls back to a grey ramp if there is no LUT.
+	 */
+	public static int[] lookupTable(ImageProcessor displayed) {
+		return lookupTable(displayed.getCurrentColorModel());
+	}
+
+	/** Colour table of a colour model, or a grey ramp if it isn't a 256 entry LUT. */
+	public static int[] lookupTable(ColorModel cm) {
+		if (cm instanceof IndexColorModel && ((IndexColorModel)cm).getMapSize() == 256) {
+			int[] lut = new int[256];
+			((IndexColorModel)cm).getRGBs(lut);
+			return lut;
+		}
+		return greyTable();
+	}
+
+	/** Colour table mapping each 8-bit value to the opaque grey of that value. */
+	public static int[] greyTable() {
+		int[] lut = new int[256];
+		for (int i=0; i<256; i++) lut[i] = 0xff000000 | (i<<16) | (i<<8) | i;
+		return lut;
+	}
+
+	/**
+	 * Resample one slice into dst, an ARGB atlas of width dstStride, with the
+	 * top-left corner of the slice at (dx, dy).
+	 *
+	 * @param pixels raw pixel array of the slice, as returned by ImageStack.getPixels()
+	 * @param lut table mapping grey values to colours, shared by all slices; ignored for RGB data
+	 */
+	@Override
+	public void resample(Object pixels, IntensityLut lut, int[] dst, int dstStride, int dx, int dy) {
+		if (pixels instanceof int[]) {
+			resampleRGB((int[])pixels, dst, dstStride, dx, dy);
+		} else if (pixels instanceof byte[]) {
+			resampleByte((byte[])pixels, lut, dst, dstStride, dx, dy);
+		} else if (pixels instanceof short[]) {
+			resampleShort((short[])pixels, lut, dst, dstStride, dx, dy);
+		} else if (pixels instanceof float[]) {
+			resampleFloat((float[])pixels, lut, dst, dstStride, dx, dy);
+		} else {
+			throw new IllegalArgumentException("Unsupported pixel type: " + pixels.getClass());
+		}
+	}
+
+	private void resampleRGB(int[] pixels, int[] dst, int dstStride, int dx, int dy) {
+		if (copy) {
+			for (int y=0; y<dstHeight; y++) {
+				System.arraycopy(pixels, y0[y]*stride + x0[0], dst, (dy + y)*dstStride + dx, dstWidth);
+			}
+			return;
+		}
+		for (int y=0; y<dstHeight; y++) {
+			int row0 = y0[y]*stride, row1 = y1[y]*stride;
+			double yf = yFraction[y];
+			int offset = (dy + y)*dstStride + dx;
+			for (int x=0; x<dstWidth; x++) {
+				int ll = pixels[row0 + x0[x]];
+				int lr = pixels[row0 + x1[x]];
+				int ul = pixels[row1 + x0[x]];
+				int ur = pixels[row1 + x1[x]];
+				double xf = xFraction[x];
+				int r = interpolate((ll>>16)&0xff, (lr>>16)&0xff, (ul>>16)&0xff, (ur>>16)&0xff, xf, yf);
+				int g = interpolate((ll>>8)&0xff, (lr>>8)&0xff, (ul>>8)&0xff, (ur>>8)&0xff, xf, yf);
+				int b = interpolate(ll&0xff, lr&0xff, ul&0xff, ur&0xff, xf, yf);
+				dst[offset + x] = 0xff000000 | ((r&0xff)<<16) | ((g&0xff)<<8) | b&0xff;
+			}
+		}
+	}
+
+	private void resampleByte(byte[] pixels, IntensityLut lut, int[] dst, int dstStride, int dx, int dy) {
+		for (int y=0; y<dstHeight; y++) {
+			int row0 = y0[y]*stride, row1 = y1[y]*stride;
+			double yf = yFraction[y];
+			int offset = (dy + y)*dstStride + dx;
+			for (int x=0; x<dstWidth; x++) {
+				int value = interpolate(pixels[row0 + x0[x]]&0xff, pixels[row0 + x1[x]]&0xff,
+						pixels[row1 + x0[x]]&0xff, pixels[row1 + x1[x]]&0xff, xFraction[x], yf);
+				dst[offset + x] = lut.argb(value&0xff);
+			}
+		}
+	}
+
+	private void resampleShort(short[] pixels, IntensityLut lut, int[] dst, int dstStride, int dx, int dy) {
+		// The scaling to 8 bits is part of the table
+		for (int y=0; y<dstHeight; y++) {
+			int row0 = y0[y]*stride, row1 = y1[y]*stride;
+			double yf = yFraction[y];
+			int offset = (dy + y)*dstStride + dx;
+			for (int x=0; x<dstWidth; x++) {
+				int value = interpolate(pixels[row0 + x0[x]]&0xffff, pixels[row0 + x1[x]]&0xffff,
+						pixels[row1 + x0[x]]&0xffff, pixels[row1 + x1[x]]&0xffff, xFraction[x], yf);
+				dst[offset + x] = lut.argb(value);
+			}
+		}
+	}
+
+	private void resampleFloat(float[] pixels, IntensityLut lut, int[] dst, int dstStride, int dx, int dy) {
+		for (int y=0; y<dstHeight; y++) {
+			int row0 = y0[y]*stride, row1 = y1[y]*stride;
+			double yf = yFraction[y];
+			int offset = (dy + y)*dstStride + dx;
+			for (int x=0; x<dstWidth; x++) {
+				double xf = xFraction[x];
+				double lower = pixels[row0 + x0[x]] + xf*(pixels[row0 + x1[x]] - pixels[row0 + x0[x]]);
+				double upper = pixels[row1 + x0[x]] + xf*(pixels[row1 + x1[x]] - pixels[row1 + x0[x]]);
+				dst[offset + x] = lut.argb(lower + yf*(upper - lower));
+			}
+		}
+	}
+
+	private static int interpolate(int lowerLeft, int lowerRight, int upperLeft, int upperRight, double xf, double yf) {
+		double upperAverage = upperLeft + xf * (upperRight - upperLeft);
+		double lowerAverage = lowerLeft + xf * (lowerRight - lowerLeft);
+		return (int)(lowerAverage + yf * (upperAverage - lowerAverage)+0.5);
+	}
+
+}
@@ -0,0 +1,36 @@
+package fpbioimage_helper;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Where uploaded datasets are stored: FPB Host, another S3 bucket, any
+ * S3-compatible object store or a local folder. Keys are paths below the
+ * storage root, such as "&lt;uniqueName&gt;/index.html".
+ *
+ * Backends are shared and thread-safe: {@link Bucket} hands out one
+ * instance per configuration, so its connections are reused by every
+ * export and upload thread.
+ */
+public interface StorageBackend {
+
+	/** Short description for the log, such as the bucket or folder. */
+	String getName();
+
+	boolean exists(String key) throws IOException;
+
+	/** Time the object at key was last written, or null if there is none. */
+	Date lastModified(String key) throws IOException;
+
+	/** Store data at key, readable through {@link #publicUrl}. */
+	void put(String key, byte[] data) throws IOException;
+
+	void delete(String key) throws IOException;
+
+	/** Address the object at key can be viewed at. */
+	String publicUrl(String key);
+
+	/** Release connections and other resources, once the backend is no longer handed out. */
+	void shutdown();
+
+}
@@ -0,0 +1,120 @@
+package fpbioimage_helper;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A text template such as templateWebpage.html or jsonTemplate.json,
+ * compiled once per JVM.
+ *
+ * Placeholders are words starting with "template" and a capital letter,
+ * e.g. templateUniqueName, which is field "UniqueName". The resource is
+ * read whole, as UTF-8, and split into literal text and fields, so
+ * rendering writes each piece once, in order, straight to a UTF-8 stream.
+ * Fields are looked up in a map, so new fields only need a placeholder in
+ * the template and an entry in the map. Placeholders without a value are
+ * written unchanged.
+ */
+public class Template {
+
+	private static final Pattern PLACEHOLDER = Pattern.compile("template([A-Z][A-Za-z0-9]*)");
+
+	private static final Map<String, Template> compiled = new ConcurrentHashMap<String, Template>();
+
+	// Literal text and field names, alternating, starting and ending with text
+	private final String[] text;
+	private final String[] fields;
+	private final int length;
+
+	private Template(String source) {
+		List<String> text = new ArrayList<String>();
+		List<String> fields = new ArrayList<String>();
+		Matcher matcher = PLACEHOLDER.matcher(source);
+		int end = 0;
+		while (matcher.find()) {
+			text.add(source.substring(end, matcher.start()));
+			fields.add(matcher.group(1));
+			end = matcher.end();
+		}
+		text.add(source.substring(end));
+		this.text = text.toArray(new String[text.size()]);
+		this.fields = fields.toArray(new String[fields.size()]);
+		this.length = source.length();
+	}
+
+	/** Compile a template from its source text. */
+	public static Template compile(String source) {
+		return new Template(source);
+	}
+
+	/** The template in a resource of this plugin, such as "/jsonTemplate.json", compiled on first use. */
+	public static Template forResource(String path) throws IOException {
+		Template template = compiled.get(path);
+		if (template == null) {
+			template = new Template(readResource(path));
+			compiled.put(path, template);
+		}
+		return template;
+	}
+
+	private static String readResource(String path) throws IOException {
+		InputStream in = Template.class.getResourceAsStream(path);
+		if (in == null) throw new IOException("Template " + path + " not found");
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int n; (n = in.read(buffer)) > 0; ) bytes.write(buffer, 0, n);
+			return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Names of the fields the template uses, in order, repeats included. */
+	public String[] getFields() {
+		return fields.clone();
+	}
+
+	/** Write the template with values filled in to out as UTF-8. out is flushed, not closed. */
+	public void render(Map<String, String> values, OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		for (int i=0; i<fields.length; i++) {
+			writer.write(text[i]);
+			String value = values.get(fields[i]);
+			writer.write(value != null ? value : "template" + fields[i]);
+		}
+		writer.write(text[fields.length]);
+		writer.flush();
+	}
+
+	/** The template with values filled in, as UTF-8. */
+	public byte[] render(Map<String, String> values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 256);
+		render(values, bytes);
+		return bytes.toByteArray();
+	}
+
+	/** Write the template with values filled in to a UTF-8 file. */
+	public void render(Map<String, String> values, String file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			render(values, out);
+		} finally {
+			out.close();
+		}
+	}
+
+}
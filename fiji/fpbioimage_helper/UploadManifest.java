@@ -0,0 +1,101 @@
+package fpbioimage_helper;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * MD5 content hashes of the files in an exported dataset, written as
+ * manifest.json next to jsonInfo.json.
+ *
+ * The uploader compares these hashes with the objects already on the host
+ * and only sends the files that changed.
+ */
+public class UploadManifest {
+
+	public static final String FILE_NAME = "manifest.json";
+
+	/** User metadata key holding the MD5, since multipart ETags are not plain MD5s. */
+	public static final String MD5_METADATA = "fpb-md5";
+
+	private final String folder;
+	private final Map<String, String> md5ByName = new LinkedHashMap<String, String>();
+
+	/** An empty manifest for the dataset in folder. */
+	public UploadManifest(String folder) {
+		this.folder = new File(folder).getAbsolutePath();
+	}
+
+	/** Hash each file, keyed by its path relative to the dataset folder. */
+	public static UploadManifest create(String folder, String[] files) throws IOException {
+		UploadManifest manifest = new UploadManifest(folder);
+		for (String file : files) {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				manifest.put(manifest.relativeName(file), DigestUtils.md5Hex(in));
+			} finally {
+				in.close();
+			}
+		}
+		return manifest;
+	}
+
+	public void put(String name, String md5) {
+		md5ByName.put(name, md5);
+	}
+
+	/** MD5 of the named file as lower-case hex, or null if it isn't in the manifest. */
+	public String md5(String name) {
+		return md5ByName.get(name);
+	}
+
+	/** MD5 of a file in the dataset folder, or null if it isn't in the manifest. */
+	public String md5OfFile(String file) {
+		return md5(relativeName(file));
+	}
+
+	/** Path of a file relative to the dataset folder, with '/' separators. */
+	public String relativeName(String file) {
+		String path = new File(file).getAbsolutePath();
+		if (path.startsWith(folder + File.separator)) {
+			path = path.substring(folder.length() + 1);
+		} else {
+			path = new File(file).getName();
+		}
+		return path.replace(File.separatorChar, '/');
+	}
+
+	public Map<String, String> entries() {
+		return md5ByName;
+	}
+
+	public void write(String path) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8);
+		try {
+			out.write("{\n\t\"algorithm\": \"md5\",\n\t\"files\": {");
+			String separator = "\n";
+			for (Map.Entry<String, String> entry : md5ByName.entrySet()) {
+				out.write(separator + "\t\t\"" + escape(entry.getKey()) + "\": \"" + entry.getValue() + "\"");
+				separator = ",\n";
+			}
+			out.write("\n\t}\n}\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+}
@@ -0,0 +1,127 @@
+package fpbioimage_helper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.IJ;
+import ij.Prefs;
+
+/**
+ * Opens datasets in the FPBioimage Viewer app, reusing a running viewer
+ * where possible.
+ *
+ * A viewer that accepts datasets from other programs listens on a loopback
+ * port (fp.persistent.viewerport, default {@link #DEFAULT_PORT}). The path of
+ * the jsonInfo.json is sent to it as a single UTF-8 line, and the viewer
+ * answers "ok" once it has taken the dataset. Only when no viewer answers
+ * is a new one started, with the json file and the port as separate
+ * arguments, so paths with spaces or quotes reach it unchanged. The output
+ * of started viewers is read (and shown in the log in debug mode) so they
+ * never block on a full pipe.
+ */
+public class ViewerLauncher {
+
+	public static final int DEFAULT_PORT = 47813;
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 250;
+	private static final int REPLY_TIMEOUT_MILLIS = 2000;
+
+	private final String viewerPath;
+	private final int port;
+
+	public ViewerLauncher(String viewerPath, int port) {
+		this.viewerPath = viewerPath;
+		this.port = port;
+	}
+
+	/** A launcher for the viewer and port set in the preferences. */
+	public static ViewerLauncher fromPrefs(String viewerPath) {
+		return new ViewerLauncher(viewerPath, (int)Prefs.get("fp.persistent.viewerport", DEFAULT_PORT));
+	}
+
+	/**
+	 * Show the dataset described by jsonPath: in the running viewer if there
+	 * is one, otherwise in a newly started viewer. Returns true if a running
+	 * viewer took it.
+	 */
+	public boolean open(String jsonPath) throws IOException {
+		// One launch at a time, so two exports finishing together don't start two viewers
+		synchronized (ViewerLauncher.class) {
+			if (sendToRunningViewer(jsonPath)) return true;
+			start(jsonPath);
+			return false;
+		}
+	}
+
+	/** Hand jsonPath to a viewer listening on the port; false if none answers. */
+	boolean sendToRunningViewer(String jsonPath) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MILLIS);
+			socket.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+			OutputStream out = socket.getOutputStream();
+			out.write((jsonPath + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			String reply = in.readLine();
+			return reply != null && reply.trim().equalsIgnoreCase("ok");
+		} catch (IOException e) {
+			// Nothing listening, or something that isn't a viewer
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+
+	/** Start a new viewer for jsonPath, telling it which port to listen on. */
+	Process start(String jsonPath) throws IOException {
+		ProcessBuilder pb = new ProcessBuilder(command(jsonPath));
+		pb.redirectErrorStream(true);
+		Process process = pb.start();
+		drain(process.getInputStream());
+		return process;
+	}
+
+	/** The viewer's argument list. */
+	List<String> command(String jsonPath) {
+		List<String> command = new ArrayList<String>();
+		command.add(viewerPath);
+		command.add("-jsonFile");
+		command.add(jsonPath);
+		command.add("-ipcPort");
+		command.add(Integer.toString(port));
+		return command;
+	}
+
+	private static void drain(final InputStream output) {
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					BufferedReader lines = new BufferedReader(new InputStreamReader(output, StandardCharsets.UTF_8));
+					for (String line; (line = lines.readLine()) != null; ) {
+						if (IJ.debugMode) IJ.log("FPBioimage Viewer: " + line);
+					}
+					lines.close();
+				} catch (IOException e) {
+					// The viewer has exited
+				}
+			}
+		}, "FPBioimage Viewer output");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+}